@@ -0,0 +1,210 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import javax.management.*;
+
+/**
+ * Micro benchmarks of the collection and rendering paths, run with
+ * "make bench" or "make bench ARGS='FILTER [JVMS]'". Each benchmark is
+ * warmed up and then run for a fixed time, and reports throughput and the
+ * bytes it allocated per op as measured by
+ * com.sun.management.ThreadMXBean.getThreadAllocatedBytes.
+ *
+ * Collection runs against in-process MBeanServers standing in for JVMS
+ * jvms (default 10), each with the platform MXBeans registered under their
+ * usual names, so it measures the collector and the MXBean mapping but no
+ * RMI.
+ *
+ * Only rendering is allocation free in steady state. Collecting still
+ * allocates: every sample builds a new immutable MBeanData per jvm, as
+ * each snapshot is shared with the servers on other threads, and reading
+ * the MXBeans allocates their open data on top.
+ */
+class Bench {
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long MEASURE_NANOS = 3_000_000_000L;
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final WritableByteChannel NULL_CHANNEL = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer buffer) {
+                int written = buffer.remaining();
+                buffer.position(buffer.limit());
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+    // written by the benchmarks so their results are not optimized away
+    static volatile Object sink;
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        int jvms = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        TargetStats stats = new TargetStats();
+        JmxCollector jmx = new JmxCollector(new JmxConnectionCache(stats), stats);
+        String[] ids = new String[jvms];
+        MBeanServer[] servers = new MBeanServer[jvms];
+        for (int i = 0; i < jvms; i++) {
+            ids[i] = "" + (100_000 + i);
+            servers[i] = newFakeJvm();
+        }
+        List<MBeanData> older = new ArrayList<>();
+        List<MBeanData> beans = new ArrayList<>();
+        for (int i = 0; i < jvms; i++) {
+            older.add(jmx.collect(ids[i], "Fake" + i, servers[i]));
+        }
+        for (int i = 0; i < jvms; i++) {
+            beans.add(jmx.collect(ids[i], "Fake" + i, servers[i]));
+        }
+        Map<String, MBeanData> olderById = new HashMap<>();
+        for (MBeanData bean : older) {
+            olderById.put(bean.id, bean);
+        }
+        MBeanData bean = beans.get(0);
+        MBeanData oldBean = older.get(0);
+        ProcCollector proc = new ProcCollector();
+        String self = "" + ProcessHandle.current().pid();
+
+        List<String> columnNames = Arrays.asList("BENCHMARK", "OPS/S", "NS/OP", "BYTES/OP");
+        List<List<String>> rows = new ArrayList<>();
+        Map<String, Op> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("collect/" + jvms, () -> {
+                for (int i = 0; i < servers.length; i++) {
+                    sink = jmx.collect(ids[i], "Fake" + i, servers[i]);
+                }
+            });
+        benchmarks.put("procCollect", () -> sink = proc.collect(self, "self"));
+        benchmarks.put("builder", () -> sink = copy(bean));
+        benchmarks.put("gcFraction", () -> sink = bean.getGcFraction(oldBean));
+        benchmarks.put("getChar", () -> sink = JvmGcStats.getChar(bean, oldBean));
+        benchmarks.put("humanBytes", () -> sink = JvmGcStats.humanBytes(bean.heapMemory.getUsed()));
+        benchmarks.put("renderChars/" + jvms,
+                       () -> JvmGcStats.renderChars(beans, olderById).writeTo(NULL_CHANNEL));
+        benchmarks.put("renderAll/" + jvms,
+                       () -> JvmGcStats.renderAll(beans, olderById, true, null, null)
+                       .writeTo(NULL_CHANNEL));
+
+        for (Map.Entry<String, Op> benchmark : benchmarks.entrySet()) {
+            if (benchmark.getKey().contains(filter)) {
+                rows.add(run(benchmark.getKey(), benchmark.getValue()));
+            }
+        }
+        for (int i = 0; i < columnNames.size(); i++) {
+            System.out.format(i == 0 ? "%-16s" : "%14s", columnNames.get(i));
+        }
+        System.out.println();
+        for (List<String> row : rows) {
+            for (int i = 0; i < row.size(); i++) {
+                System.out.format(i == 0 ? "%-16s" : "%14s", row.get(i));
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * Runs op in batches, doubling the batch size until a batch takes
+     * about a millisecond so reading the clock does not dominate.
+     */
+    private static List<String> run(String name, Op op) throws Exception {
+        long batch = 1;
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                op.run();
+            }
+            if (System.nanoTime() - start < 1_000_000L) {
+                batch *= 2;
+            }
+        }
+
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long bytesBefore = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        end = start + MEASURE_NANOS;
+        long now;
+        do {
+            for (long i = 0; i < batch; i++) {
+                op.run();
+            }
+            ops += batch;
+            now = System.nanoTime();
+        } while (now < end);
+        long bytes = THREADS.getThreadAllocatedBytes(thread) - bytesBefore;
+        long nanos = now - start;
+
+        return Arrays.asList(name,
+                             String.format("%.0f", ops * 1e9 / nanos),
+                             String.format("%.1f", nanos / (double) ops),
+                             String.format("%.1f", bytes / (double) ops));
+    }
+
+    private static MBeanData copy(MBeanData bean) {
+        return new MBeanData.Builder().id(bean.id)
+            .name(bean.name)
+            .cpuTime(bean.cpuTime)
+            .gcTime(bean.gcTime)
+            .heapMemory(bean.heapMemory)
+            .nonHeapMemory(bean.nonHeapMemory)
+            .openFileDescriptorCount(bean.openFileDescriptorCount)
+            .maxFileDescriptorCount(bean.maxFileDescriptorCount)
+            .threadCount(bean.threadCount)
+            .nioBufferPoolDirectMemoryUsed(bean.nioBufferPoolDirectMemoryUsed)
+            .nioBufferPoolMappedMemoryUsed(bean.nioBufferPoolMappedMemoryUsed)
+            .loadedClassCount(bean.loadedClassCount)
+            .processCpuLoad(bean.processCpuLoad)
+            .uptime(bean.uptime)
+            .collectors(bean.collectorNames, bean.collectionCounts, bean.collectionTimes)
+            .pools(bean.poolNames, bean.poolUsages)
+            .finish();
+    }
+
+    /**
+     * An MBeanServer with the MXBeans of this jvm that JmxCollector reads.
+     */
+    private static MBeanServer newFakeJvm() throws JMException {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        register(server, ManagementFactory.getRuntimeMXBean(), RuntimeMXBean.class);
+        register(server,
+                 ManagementFactory.getPlatformMXBean(
+                     com.sun.management.UnixOperatingSystemMXBean.class),
+                 com.sun.management.UnixOperatingSystemMXBean.class);
+        register(server, ManagementFactory.getMemoryMXBean(), MemoryMXBean.class);
+        register(server, ManagementFactory.getPlatformMXBean(com.sun.management.ThreadMXBean.class),
+                 com.sun.management.ThreadMXBean.class);
+        register(server, ManagementFactory.getClassLoadingMXBean(), ClassLoadingMXBean.class);
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            register(server, pool, BufferPoolMXBean.class);
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            register(server, gc, GarbageCollectorMXBean.class);
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            register(server, pool, MemoryPoolMXBean.class);
+        }
+        return server;
+    }
+
+    private static <T extends PlatformManagedObject> void register(MBeanServer server, T mxBean,
+                                                                   Class<T> type)
+        throws JMException {
+        server.registerMBean(new StandardMBean(mxBean, type, true), mxBean.getObjectName());
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.*;
+
+/**
+ * Checks that TextBuffer.appendFixed formats like String.format("%.Nf"),
+ * run with "make check" or "make check ARGS='[VALUES] [SEED]'". Compares
+ * random doubles of all magnitudes and doubles within a few ulps of the
+ * ties of each number of decimals, where rounding goes wrong, and exits
+ * with 1 on the first mismatches.
+ */
+class FormatCheck {
+    private static final int MAX_DECIMALS = 6;
+    private static final int MAX_PRINTED = 10;
+
+    public static void main(String[] args) {
+        int values = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        TextBuffer text = new TextBuffer(64);
+        int mismatches = 0;
+        for (int i = 0; i < values; i++) {
+            int decimals = random.nextInt(MAX_DECIMALS + 1);
+            double value;
+            switch (i % 3) {
+            case 0:
+                // uniform over a random magnitude
+                value = random.nextDouble() * Math.pow(10, random.nextInt(12) - 4);
+                break;
+            case 1:
+                // a tie of decimals, a few ulps either way
+                double scale = Math.pow(10, decimals);
+                value = (random.nextInt(1_000_000) + 0.5) / scale;
+                for (int ulps = random.nextInt(7) - 3; ulps != 0; ulps -= Integer.signum(ulps)) {
+                    value = ulps > 0 ? Math.nextUp(value) : Math.nextDown(value);
+                }
+                break;
+            default:
+                // a short decimal like the rates and fractions of the table
+                value = random.nextInt(100_000_000) / Math.pow(10, random.nextInt(9));
+                break;
+            }
+            if (random.nextBoolean()) {
+                value = -value;
+            }
+            text.clear();
+            String actual = text.appendFixed(value, decimals).toString();
+            String expected = String.format("%." + decimals + "f", value);
+            if (!expected.equals(actual)) {
+                if (mismatches++ < MAX_PRINTED) {
+                    System.out.println(Double.toString(value) + " %." + decimals + "f: expected "
+                                       + expected + ", got " + actual);
+                }
+            }
+        }
+        System.out.println(values + " values, seed " + seed + ", " + mismatches + " mismatches");
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+}
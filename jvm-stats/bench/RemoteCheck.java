@@ -0,0 +1,82 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks collecting from a --remote target, run with "make check". Starts
+ * an idle SyntheticJvm with a JMX remote port, and checks that
+ * JvmGcStats.getBeans reads it as OK, and as UNREACHABLE once it has been
+ * killed, and exits with 1 if not.
+ */
+class RemoteCheck {
+    private static final long START_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long UNREACHABLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    public static void main(String[] args) throws Exception {
+        int port = freePort();
+        String java = System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(
+            java, "-XX:+UseSerialGC", "-Xmx32m",
+            // killed below, so it must not leave an hsperfdata file behind
+            "-XX:-UsePerfData",
+            "-Dcom.sun.management.jmxremote.port=" + port,
+            "-Dcom.sun.management.jmxremote.rmi.port=" + port,
+            "-Dcom.sun.management.jmxremote.host=127.0.0.1",
+            "-Dcom.sun.management.jmxremote.authenticate=false",
+            "-Dcom.sun.management.jmxremote.ssl=false",
+            "-cp", System.getProperty("java.class.path"), "SyntheticJvm", "0", "0", "0", "0");
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process child = builder.start();
+        RemoteTarget remote = RemoteTarget.parse("127.0.0.1:" + port);
+        JvmGcStats.addRemote(remote);
+
+        boolean ok;
+        try {
+            ok = await(remote, MBeanData.Status.OK, START_TIMEOUT_NANOS);
+        } finally {
+            child.destroyForcibly();
+            child.waitFor();
+        }
+        boolean unreachable = ok && await(remote, MBeanData.Status.UNREACHABLE,
+                                          UNREACHABLE_TIMEOUT_NANOS);
+        System.out.println(remote + ": " + (ok ? "OK" : "never OK")
+                           + (ok ? unreachable ? ", UNREACHABLE once killed"
+                              : ", not UNREACHABLE once killed" : ""));
+        System.exit(ok && unreachable ? 0 : 1);
+    }
+
+    /**
+     * Collects remote until it has status, or timeoutNanos has passed,
+     * printing every other status it has on the way.
+     */
+    private static boolean await(RemoteTarget remote, MBeanData.Status status, long timeoutNanos)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        MBeanData.Status last = null;
+        while (System.nanoTime() < deadline) {
+            for (MBeanData bean : JvmGcStats.getBeans(remote.id)) {
+                if (!bean.id.equals(remote.id)) {
+                    continue;
+                }
+                if (bean.status == status) {
+                    return true;
+                }
+                if (bean.status != last) {
+                    System.out.println(remote + ": " + bean.status + ", waiting for " + status);
+                    last = bean.status;
+                }
+            }
+            Thread.sleep(200);
+        }
+        return false;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Scaling benchmark of jvm-stats against real jvms, run with
+ * "make scale ARGS='[--jvms=N,...] [--samples=N] [--warmup=N]
+ * [--interval=SECONDS] [--mix=PROFILE,...] [--alloc=MB] [--live=MB]
+ * [--threads=N] [--fds=N]'".
+ *
+ * Starts SyntheticJvm children, the PROFILEs of --mix in turn, up to each
+ * N of --jvms (default 5,50,200), and samples them all in this jvm with
+ * JvmGcStats.getBeans every interval, comparing each sample to the
+ * previous like -d. For each N it reports the percentiles of the sample
+ * latency, the cpu and rss of this jvm while sampling, and how many
+ * children getChar classified as their profile expects.
+ *
+ * The profiles are idle, alloc (50 MB/s), gc (300 MB/s into a nearly full
+ * heap, expects G), threads (600 threads, expects T) and fds (600 open
+ * files, expects F). --alloc, --live, --threads and --fds define a
+ * custom profile, used alone unless --mix is given.
+ */
+class ScaleBench {
+    private static final String DIGITS = "0123456789";
+    private static final Map<String, Profile> PROFILES = new LinkedHashMap<>();
+    static {
+        PROFILES.put("idle", new Profile("idle", 0, 0, 0, 0, 64, DIGITS));
+        PROFILES.put("alloc", new Profile("alloc", 50, 8, 0, 0, 64, DIGITS));
+        PROFILES.put("gc", new Profile("gc", 300, 36, 0, 0, 64, "G"));
+        PROFILES.put("threads", new Profile("threads", 0, 0, 600, 0, 64, "T"));
+        PROFILES.put("fds", new Profile("fds", 0, 0, 0, 600, 64, "F"));
+    }
+    private static final long START_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final long STOP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> steps = Arrays.asList(5, 50, 200);
+        int samples = 10;
+        int warmup = 3;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1);
+        String mix = null;
+        int[] custom = { -1, -1, -1, -1 };
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--jvms=")) {
+                steps = new ArrayList<>();
+                for (String n : value.split(",")) {
+                    steps.add(Integer.parseInt(n));
+                }
+            } else if (arg.startsWith("--samples=")) {
+                samples = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--interval=")) {
+                intervalNanos = (long) (Double.parseDouble(value) * 1e9);
+            } else if (arg.startsWith("--mix=")) {
+                mix = value;
+            } else if (arg.startsWith("--alloc=")) {
+                custom[0] = Integer.parseInt(value);
+            } else if (arg.startsWith("--live=")) {
+                custom[1] = Integer.parseInt(value);
+            } else if (arg.startsWith("--threads=")) {
+                custom[2] = Integer.parseInt(value);
+            } else if (arg.startsWith("--fds=")) {
+                custom[3] = Integer.parseInt(value);
+            } else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+        if (custom[0] >= 0 || custom[1] >= 0 || custom[2] >= 0 || custom[3] >= 0) {
+            PROFILES.put("custom", Profile.custom(custom));
+            if (mix == null) {
+                mix = "custom";
+            }
+        }
+        List<Profile> profiles = new ArrayList<>();
+        for (String name : (mix == null ? String.join(",", PROFILES.keySet()) : mix).split(",")) {
+            Profile profile = PROFILES.get(name);
+            if (profile == null) {
+                System.err.println("Unknown profile: " + name);
+                System.exit(1);
+            }
+            profiles.add(profile);
+        }
+
+        List<Child> children = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(children)));
+        ProcCollector proc = new ProcCollector();
+        String self = "" + ProcessHandle.current().pid();
+
+        System.out.format("%6s%9s%9s%9s%7s%9s%6s%7s%10s%9s%n", "JVMS", "P50MS", "P99MS", "MAXMS",
+                          "CPU%", "RSS", "OK", "WRONG", "TIMEDOUT", "MISSING");
+        for (int n : steps) {
+            while (children.size() < n) {
+                children.add(new Child(profiles.get(children.size() % profiles.size())));
+            }
+            awaitStarted(children);
+
+            Map<String, MBeanData> previous = new HashMap<>();
+            for (int i = 0; i < warmup; i++) {
+                previous = sample(intervalNanos, null);
+            }
+
+            LatencyHistogram latencies = new LatencyHistogram();
+            Result result = new Result();
+            long cpuBefore = proc.readCpuTime(self);
+            long start = System.nanoTime();
+            for (int i = 0; i < samples; i++) {
+                Map<String, MBeanData> beans = sample(intervalNanos, latencies);
+                for (Child child : children) {
+                    result.add(child, beans.get(child.id), previous.get(child.id));
+                }
+                previous = beans;
+            }
+            double cpu = (proc.readCpuTime(self) - cpuBefore) * 100.0 / (System.nanoTime() - start);
+            MBeanData selfData = proc.collect(self, "self");
+
+            System.out.format("%6d%9.1f%9.1f%9.1f%7.1f%9s%6d%7d%10d%9d%n", n,
+                              latencies.getPercentile(0.5) / 1000.0,
+                              latencies.getPercentile(0.99) / 1000.0,
+                              latencies.getMax() / 1000.0, cpu,
+                              JvmGcStats.humanBytes(selfData == null ? -1L : selfData.rss),
+                              result.ok, result.wrong, result.timedOut, result.missing);
+            for (Map.Entry<String, Map<Character, Integer>> entry : result.wrongChars.entrySet()) {
+                System.out.println("       " + entry.getKey() + ": expected "
+                                   + PROFILES.get(entry.getKey()).expected.replace(DIGITS, "0-9")
+                                   + ", got " + entry.getValue());
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Takes one sample of all jvms, recording its latency if latencies is
+     * not null, and sleeps until the next interval.
+     */
+    private static Map<String, MBeanData> sample(long intervalNanos, LatencyHistogram latencies)
+        throws InterruptedException {
+        long start = System.nanoTime();
+        List<MBeanData> beans = JvmGcStats.getBeans(null);
+        long nanos = System.nanoTime() - start;
+        if (latencies != null) {
+            latencies.record(nanos / 1000);
+        }
+        Map<String, MBeanData> byId = new HashMap<>();
+        for (MBeanData bean : beans) {
+            byId.put(bean.id, bean);
+        }
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, intervalNanos - nanos));
+        return byId;
+    }
+
+    /**
+     * Waits until every child has published its hsperfdata file, i.e. can
+     * be discovered.
+     */
+    private static void awaitStarted(List<Child> children) throws InterruptedException {
+        long deadline = System.nanoTime() + START_TIMEOUT_NANOS;
+        while (System.nanoTime() < deadline) {
+            Set<String> started = HsPerfDataCollector.list().keySet();
+            boolean all = true;
+            for (Child child : children) {
+                if (!child.process.isAlive()) {
+                    System.err.println("Child " + child.id + " (" + child.profile.name
+                                       + ") exited with " + child.process.exitValue());
+                    System.exit(1);
+                }
+                all &= started.contains(child.id);
+            }
+            if (all) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        System.err.println("Children did not start within "
+                           + TimeUnit.NANOSECONDS.toSeconds(START_TIMEOUT_NANOS) + "s");
+        System.exit(1);
+    }
+
+    /**
+     * Closes the stdin of every child so it exits and deletes its
+     * hsperfdata file, and kills those that have not exited within
+     * STOP_TIMEOUT_NANOS, which leaves their files behind.
+     */
+    private static void stop(List<Child> children) {
+        for (Child child : children) {
+            try {
+                child.process.getOutputStream().close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+        long deadline = System.nanoTime() + STOP_TIMEOUT_NANOS;
+        for (Child child : children) {
+            try {
+                if (!child.process.waitFor(Math.max(0, deadline - System.nanoTime()),
+                                           TimeUnit.NANOSECONDS)) {
+                    child.process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                child.process.destroyForcibly();
+            }
+        }
+    }
+
+    private static class Profile {
+        private final String name;
+        private final int allocMb;
+        private final int liveMb;
+        private final int threads;
+        private final int fds;
+        private final int heapMb;
+        // the chars getChar should return
+        private final String expected;
+
+        private Profile(String name, int allocMb, int liveMb, int threads, int fds, int heapMb,
+                        String expected) {
+            this.name = name;
+            this.allocMb = allocMb;
+            this.liveMb = liveMb;
+            this.threads = threads;
+            this.fds = fds;
+            this.heapMb = heapMb;
+            this.expected = expected;
+        }
+
+        /**
+         * A profile of --alloc, --live, --threads and --fds, -1 if not
+         * given. Expects what the same thresholds as getChar would trip.
+         */
+        private static Profile custom(int[] values) {
+            int allocMb = Math.max(0, values[0]);
+            int liveMb = Math.max(0, values[1]);
+            int threads = Math.max(0, values[2]);
+            int fds = Math.max(0, values[3]);
+            String expected = fds > 500 ? "F" : threads > 500 ? "T" : "G" + DIGITS;
+            return new Profile("custom", allocMb, liveMb, threads, fds,
+                               Math.max(64, liveMb * 2), expected);
+        }
+    }
+
+    private static class Child {
+        private final Profile profile;
+        private final Process process;
+        private final String id;
+
+        private Child(Profile profile) throws IOException {
+            this.profile = profile;
+            String java = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java";
+            ProcessBuilder builder = new ProcessBuilder(
+                java, "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-Xss256k",
+                "-Xmx" + profile.heapMb + "m", "-cp", System.getProperty("java.class.path"),
+                "SyntheticJvm", "" + profile.allocMb, "" + profile.liveMb, "" + profile.threads,
+                "" + profile.fds);
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            this.process = builder.start();
+            this.id = "" + process.pid();
+        }
+    }
+
+    /**
+     * How the children were classified over the samples.
+     */
+    private static class Result {
+        private int ok;
+        private int wrong;
+        private int timedOut;
+        private int missing;
+        // profile name to wrong char to count
+        private final Map<String, Map<Character, Integer>> wrongChars = new TreeMap<>();
+
+        private void add(Child child, MBeanData bean, MBeanData oldBean) {
+            if (bean == null) {
+                missing++;
+                return;
+            }
+            if (bean.status == MBeanData.Status.TIMED_OUT) {
+                timedOut++;
+                return;
+            }
+            char c = JvmGcStats.getChar(bean, oldBean);
+            if (child.profile.expected.indexOf(c) >= 0) {
+                ok++;
+            } else {
+                wrong++;
+                wrongChars.computeIfAbsent(child.profile.name, name -> new TreeMap<>())
+                    .merge(c, 1, Integer::sum);
+            }
+        }
+    }
+}
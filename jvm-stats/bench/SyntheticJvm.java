@@ -0,0 +1,72 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A child jvm of ScaleBench with a controlled load:
+ * "SyntheticJvm ALLOC_MB_PER_S LIVE_MB THREADS FDS". It keeps LIVE_MB
+ * reachable, allocates ALLOC_MB_PER_S in 64K arrays of which the last few
+ * megabytes survive a while, so they are copied and promoted like real
+ * garbage, and holds THREADS sleeping threads and FDS open files. It exits
+ * when its stdin is closed, i.e. when ScaleBench exits.
+ */
+class SyntheticJvm {
+    private static final int CHUNK_BYTES = 64 << 10;
+    private static final int SURVIVOR_CHUNKS = 64;
+    private static final long TICK_MILLIS = 10;
+
+    static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        long allocBytesPerSecond = Long.parseLong(args[0]) << 20;
+        int liveMb = Integer.parseInt(args[1]);
+        int threads = Integer.parseInt(args[2]);
+        int fds = Integer.parseInt(args[3]);
+
+        Thread watchdog = new Thread(() -> {
+                try {
+                    while (System.in.read() >= 0) {
+                        // wait for eof
+                    }
+                } catch (IOException e) {
+                    // parent is gone
+                }
+                System.exit(0);
+            });
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        List<byte[]> live = new ArrayList<>();
+        for (int i = 0; i < liveMb; i++) {
+            live.add(new byte[1 << 20]);
+        }
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                    try {
+                        Thread.sleep(Long.MAX_VALUE);
+                    } catch (InterruptedException e) {
+                        // exit
+                    }
+                });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        List<FileChannel> files = new ArrayList<>();
+        for (int i = 0; i < fds; i++) {
+            files.add(FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.READ));
+        }
+        // reachable so they are not collected, and the files not closed
+        sink = new Object[] { live, files };
+
+        byte[][] survivors = new byte[SURVIVOR_CHUNKS][];
+        long chunksPerTick = allocBytesPerSecond * TICK_MILLIS / 1000 / CHUNK_BYTES;
+        long next = 0;
+        while (true) {
+            for (long i = 0; i < chunksPerTick; i++) {
+                survivors[(int) (next++ % SURVIVOR_CHUNKS)] = new byte[CHUNK_BYTES];
+            }
+            Thread.sleep(TICK_MILLIS);
+        }
+    }
+}
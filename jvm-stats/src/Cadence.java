@@ -0,0 +1,115 @@
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decides which jvms to sample on each tick of the sampler. A jvm that is
+ * hot (trips a warning or is busy) is sampled every tick, the interval of
+ * any other jvm doubles with each sample up to MAX_BACKOFF ticks. A jvm
+ * that is not due keeps its last sample.
+ *
+ * The cpu time of jvm-stats itself is measured every tick, and while it
+ * uses more than the budget fraction of one cpu all intervals are
+ * stretched, doubling up to MAX_STRETCH times.
+ */
+class Cadence {
+    private static final int MAX_BACKOFF = 16;
+    private static final int MAX_STRETCH = 64;
+    // weight of the newest tick in the overhead average
+    private static final double OVERHEAD_WEIGHT = 0.25;
+
+    private final double budget;
+    private final com.sun.management.OperatingSystemMXBean os =
+        ManagementFactory.getPlatformMXBean(com.sun.management.OperatingSystemMXBean.class);
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+    private volatile long tick = 0;
+    private volatile int stretch = 1;
+    private volatile double overhead = 0.0;
+    private long lastCpuTime = -1L;
+    private long lastNanoTime;
+    private long lastStretchTick = 0;
+
+    /**
+     * @param budget fraction of one cpu jvm-stats may use, e.g. 0.005
+     */
+    public Cadence(double budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Starts the next tick, adjusting the stretch to the overhead since
+     * the previous tick.
+     */
+    public synchronized void tick() {
+        long cpuTime = os.getProcessCpuTime();
+        long now = System.nanoTime();
+        if (lastCpuTime >= 0 && cpuTime >= 0 && now > lastNanoTime) {
+            double tickOverhead = (cpuTime - lastCpuTime) / (double) (now - lastNanoTime);
+            overhead = OVERHEAD_WEIGHT * tickOverhead + (1 - OVERHEAD_WEIGHT) * overhead;
+            // give the last change as many ticks as the stretch to show
+            if (tick - lastStretchTick >= stretch) {
+                int oldStretch = stretch;
+                if (overhead > budget) {
+                    stretch = Math.min(MAX_STRETCH, stretch * 2);
+                } else if (overhead < budget / 2) {
+                    // only shrink well under the budget, or it would flap
+                    stretch = Math.max(1, stretch / 2);
+                }
+                if (stretch != oldStretch) {
+                    lastStretchTick = tick;
+                }
+            }
+        }
+        lastCpuTime = cpuTime;
+        lastNanoTime = now;
+        tick++;
+    }
+
+    /**
+     * Returns the last sample of the jvm if it is not due this tick, or
+     * null if it should be sampled.
+     */
+    public MBeanData getSkipped(String id) {
+        State state = states.get(id);
+        return state == null || tick >= state.nextTick ? null : state.last;
+    }
+
+    /**
+     * The last sample of the jvm, or null.
+     */
+    public MBeanData getLast(String id) {
+        State state = states.get(id);
+        return state == null ? null : state.last;
+    }
+
+    /**
+     * Schedules the next sample of the jvm. Samples returned by getSkipped
+     * are ignored.
+     */
+    public void sampled(MBeanData bean, boolean hot) {
+        State state = states.computeIfAbsent(bean.id, id -> new State());
+        if (state.last == bean) {
+            return;
+        }
+        state.last = bean;
+        state.backoff = hot ? 1 : Math.min(MAX_BACKOFF, state.backoff * 2);
+        state.nextTick = tick + (long) state.backoff * stretch;
+    }
+
+    public void retain(Set<String> liveIds) {
+        states.keySet().retainAll(liveIds);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cadence: %.2f%% of a cpu used, budget %.2f%%, intervals x%d",
+                             overhead * 100, budget * 100, stretch);
+    }
+
+    private static class State {
+        private volatile MBeanData last;
+        // in ticks, before the stretch
+        private volatile int backoff = 1;
+        private volatile long nextTick;
+    }
+}
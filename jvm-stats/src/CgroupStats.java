@@ -0,0 +1,376 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads the cpu throttling and memory of the cgroup of each jvm, which in
+ * a container is the limit that matters rather than the cpus and heap max
+ * the jvm sees. The cgroup of a pid is looked up once in /proc/PID/cgroup,
+ * and the cpu.stat, memory.current, memory.stat and memory.max files of
+ * each cgroup are kept open and read again from the start on every update,
+ * as jvms in the same container share them. Falls back to the cgroup v1
+ * cpu and memory controllers when the v2 files are not there.
+ *
+ * Memory is the working set, what is used less the inactive page cache,
+ * which the kernel reclaims before it kills anything.
+ */
+class CgroupStats {
+    private static final Path V2_ROOT =
+        Files.exists(Paths.get("/sys/fs/cgroup/cgroup.controllers")) ? Paths.get("/sys/fs/cgroup")
+        : Paths.get("/sys/fs/cgroup/unified");
+    private static final Path V1_ROOT = Paths.get("/sys/fs/cgroup");
+    private static final byte[] NR_PERIODS = "nr_periods ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NR_THROTTLED = "nr_throttled ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] THROTTLED_USEC =
+        "throttled_usec ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] THROTTLED_TIME =
+        "throttled_time ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INACTIVE_FILE = "inactive_file ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TOTAL_INACTIVE_FILE =
+        "total_inactive_file ".getBytes(StandardCharsets.US_ASCII);
+    // cgroup v1 reports no memory limit as a page aligned Long.MAX_VALUE
+    private static final long NO_LIMIT = 1L << 62;
+
+    // memory.stat of cgroup v2 has grown past 4K
+    private final ByteBuffer buffer = ByteBuffer.allocate(16384);
+    private final Map<String, Process> processes = new HashMap<>();
+    private final Map<String, Group> groups = new HashMap<>();
+
+    /**
+     * Reads the cgroup of the jvm, keeping the previous read to compare to.
+     */
+    public synchronized void update(String id) {
+        Process process = processes.get(id);
+        if (process == null) {
+            Group group = resolve(id);
+            if (group == null) {
+                return;
+            }
+            process = new Process(group);
+            processes.put(id, process);
+        }
+        Sample sample = read(process.group);
+        if (sample == null) {
+            // the cgroup is gone, or the process moved, look it up again
+            processes.remove(id);
+            closeUnused();
+            return;
+        }
+        process.previous = process.current;
+        process.current = sample;
+    }
+
+    /**
+     * The fraction of the cfs periods in which the cgroup of the jvm was
+     * throttled since the previous update, or over the life of the cgroup
+     * on the first, -1 if there is no cpu quota or it is unknown.
+     */
+    public synchronized double getThrottledFraction(String id) {
+        Process process = processes.get(id);
+        Sample current = process == null ? null : process.current;
+        if (current == null || current.periods <= 0) {
+            return -1.0;
+        }
+        Sample previous = process.previous;
+        if (previous == null || current.periods < previous.periods) {
+            return (double) current.throttled / current.periods;
+        }
+        long periods = current.periods - previous.periods;
+        return periods == 0 ? 0.0 : (double) (current.throttled - previous.throttled) / periods;
+    }
+
+    /**
+     * The fraction of wall time the cgroup of the jvm was throttled since
+     * the previous update, or over the cfs periods it ran in on the first,
+     * -1 if there is no cpu quota or it is unknown. Unlike
+     * getThrottledFraction a period throttled for a microsecond hardly
+     * counts, and with several cpus it can exceed 1.
+     */
+    public synchronized double getThrottledTimeFraction(String id) {
+        Process process = processes.get(id);
+        Sample current = process == null ? null : process.current;
+        if (current == null || current.periods <= 0 || current.throttledNanos < 0) {
+            return -1.0;
+        }
+        Sample previous = process.previous;
+        if (previous == null || current.throttledNanos < previous.throttledNanos) {
+            long periodNanos = process.group.periodNanos;
+            return periodNanos <= 0 ? -1.0
+                : (double) current.throttledNanos / (current.periods * periodNanos);
+        }
+        long nanos = current.nanoTime - previous.nanoTime;
+        return nanos <= 0 ? 0.0 : (double) (current.throttledNanos - previous.throttledNanos) / nanos;
+    }
+
+    /**
+     * The working set of the cgroup of the jvm in bytes, or -1.
+     */
+    public synchronized long getMemory(String id) {
+        Process process = processes.get(id);
+        Sample current = process == null ? null : process.current;
+        if (current == null || current.memory < 0) {
+            return -1L;
+        }
+        return current.inactiveFile < 0 ? current.memory
+            : Math.max(0, current.memory - current.inactiveFile);
+    }
+
+    /**
+     * The memory limit of the cgroup of the jvm, or -1 if there is none.
+     */
+    public synchronized long getMemoryMax(String id) {
+        Process process = processes.get(id);
+        return process == null || process.current == null ? -1L : process.current.memoryMax;
+    }
+
+    /**
+     * Forgets the jvms not in liveIds, closing the files of the cgroups no
+     * longer used.
+     */
+    public synchronized void retain(Set<String> liveIds) {
+        processes.keySet().retainAll(liveIds);
+        closeUnused();
+    }
+
+    private void closeUnused() {
+        Set<Group> used = new HashSet<>();
+        for (Process process : processes.values()) {
+            used.add(process.group);
+        }
+        for (Iterator<Group> it = groups.values().iterator(); it.hasNext();) {
+            Group group = it.next();
+            if (!used.contains(group)) {
+                group.close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Opens the files of the cgroup of the pid, or returns null if the pid
+     * is not in any readable cgroup.
+     */
+    private Group resolve(String id) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get("/proc", id, "cgroup"), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+        Path v2 = null;
+        Path cpu = null;
+        Path memory = null;
+        for (String line : lines) {
+            // hierarchy-ID:controller-list:cgroup-path
+            String[] fields = line.split(":", 3);
+            if (fields.length < 3) {
+                continue;
+            }
+            String path = fields[2].startsWith("/") ? fields[2].substring(1) : fields[2];
+            if (fields[1].isEmpty()) {
+                v2 = V2_ROOT.resolve(path);
+            }
+            for (String controller : fields[1].split(",")) {
+                if ("cpu".equals(controller)) {
+                    cpu = V1_ROOT.resolve(fields[1]).resolve(path);
+                } else if ("memory".equals(controller)) {
+                    memory = V1_ROOT.resolve(fields[1]).resolve(path);
+                }
+            }
+        }
+
+        boolean v2Cpu = v2 != null && Files.exists(v2.resolve("cpu.max"));
+        boolean v2Memory = v2 != null && Files.exists(v2.resolve("memory.current"));
+        Path cpuStat = v2Cpu ? v2.resolve("cpu.stat") : cpu == null ? null : cpu.resolve("cpu.stat");
+        Path memoryCurrent = v2Memory ? v2.resolve("memory.current")
+            : memory == null ? null : memory.resolve("memory.usage_in_bytes");
+        Path memoryMax = v2Memory ? v2.resolve("memory.max")
+            : memory == null ? null : memory.resolve("memory.limit_in_bytes");
+        Path memoryStat = v2Memory ? v2.resolve("memory.stat")
+            : memory == null ? null : memory.resolve("memory.stat");
+        String key = cpuStat + ":" + memoryCurrent;
+        Group group = groups.get(key);
+        if (group == null) {
+            long periodNanos = v2Cpu ? readPeriodNanos(v2.resolve("cpu.max"), 1)
+                : cpu == null ? -1L : readPeriodNanos(cpu.resolve("cpu.cfs_period_us"), 0);
+            group = new Group(open(cpuStat), open(memoryCurrent), open(memoryMax),
+                              open(memoryStat), !v2Memory, periodNanos);
+            if (group.cpuStat == null && group.memoryCurrent == null) {
+                group.close();
+                return null;
+            }
+            groups.put(key, group);
+        }
+        return group;
+    }
+
+    /**
+     * The cfs period in nano seconds, the field-th field in micro seconds
+     * of file, or -1.
+     */
+    private static long readPeriodNanos(Path file, int field) {
+        try {
+            String[] fields = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII)
+                .trim().split(" ");
+            return fields.length > field ? Long.parseLong(fields[field]) * 1000 : -1L;
+        } catch (IOException | NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private Sample read(Group group) {
+        Sample sample = new Sample();
+        sample.nanoTime = System.nanoTime();
+        if (group.cpuStat != null) {
+            int length = read(group.cpuStat);
+            if (length < 0) {
+                return null;
+            }
+            sample.periods = findLong(length, NR_PERIODS);
+            sample.throttled = findLong(length, NR_THROTTLED);
+            long usec = findLong(length, THROTTLED_USEC);
+            sample.throttledNanos = usec >= 0 ? usec * 1000 : findLong(length, THROTTLED_TIME);
+        }
+        if (group.memoryCurrent != null) {
+            sample.memory = parseLong(read(group.memoryCurrent));
+            if (sample.memory < 0) {
+                return null;
+            }
+        }
+        if (group.memoryStat != null) {
+            int length = read(group.memoryStat);
+            sample.inactiveFile = findLong(length, group.v1 ? TOTAL_INACTIVE_FILE : INACTIVE_FILE);
+        }
+        if (group.memoryMax != null) {
+            // "max" in cgroup v2 parses as -1
+            long max = parseLong(read(group.memoryMax));
+            sample.memoryMax = max >= NO_LIMIT ? -1L : max;
+        }
+        return sample;
+    }
+
+    /**
+     * Reads the file from the start into buffer and returns its length, or
+     * -1 if it cannot be read.
+     */
+    private int read(FileChannel channel) {
+        buffer.clear();
+        try {
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+                // read until full or end of file
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Returns the number after the line starting with key in the first
+     * length bytes of buffer, or -1.
+     */
+    private long findLong(int length, byte[] key) {
+        byte[] bytes = buffer.array();
+        for (int pos = 0; pos + key.length <= length; pos++) {
+            if ((pos == 0 || bytes[pos - 1] == '\n') && startsWith(bytes, pos, key)) {
+                return parseLong(pos + key.length, length);
+            }
+        }
+        return -1L;
+    }
+
+    private long parseLong(int length) {
+        return length <= 0 ? -1L : parseLong(0, length);
+    }
+
+    private long parseLong(int pos, int length) {
+        byte[] bytes = buffer.array();
+        if (pos >= length || bytes[pos] < '0' || bytes[pos] > '9') {
+            return -1L;
+        }
+        long value = 0;
+        while (pos < length && bytes[pos] >= '0' && bytes[pos] <= '9') {
+            value = value * 10 + (bytes[pos++] - '0');
+        }
+        return value;
+    }
+
+    private static boolean startsWith(byte[] bytes, int pos, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static FileChannel open(Path file) {
+        if (file == null) {
+            return null;
+        }
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The open files of one cgroup, any may be null.
+     */
+    private static class Group {
+        private final FileChannel cpuStat;
+        private final FileChannel memoryCurrent;
+        private final FileChannel memoryMax;
+        private final FileChannel memoryStat;
+        // memoryStat has the total_ keys of cgroup v1
+        private final boolean v1;
+        private final long periodNanos;
+
+        private Group(FileChannel cpuStat, FileChannel memoryCurrent, FileChannel memoryMax,
+                      FileChannel memoryStat, boolean v1, long periodNanos) {
+            this.cpuStat = cpuStat;
+            this.memoryCurrent = memoryCurrent;
+            this.memoryMax = memoryMax;
+            this.memoryStat = memoryStat;
+            this.v1 = v1;
+            this.periodNanos = periodNanos;
+        }
+
+        private void close() {
+            for (FileChannel channel : new FileChannel[] {
+                    cpuStat, memoryCurrent, memoryMax, memoryStat }) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Process {
+        private final Group group;
+        private Sample previous;
+        private Sample current;
+
+        private Process(Group group) {
+            this.group = group;
+        }
+    }
+
+    private static class Sample {
+        private long nanoTime;
+        private long periods = -1L;
+        private long throttled = -1L;
+        private long throttledNanos = -1L;
+        private long memory = -1L;
+        private long inactiveFile = -1L;
+        private long memoryMax = -1L;
+    }
+}
@@ -0,0 +1,159 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+/**
+ * Records every garbage collection pause of the jvms, pushed by the jvms
+ * as GarbageCollectionNotificationInfo notifications on their garbage
+ * collector MBeans, rather than polling CollectionTime. Concurrent cycles
+ * are not pauses and are left out. Each jvm gets a histogram of pause
+ * durations for the current window, with the cause of the longest pause
+ * and the heap the pauses freed, which roll closes and makes available
+ * through getWindow.
+ */
+class GcPauseTracker {
+    // sent to the jvm, so it has to be serializable there
+    private static final NotificationFilterSupport GC_NOTIFICATIONS =
+        new NotificationFilterSupport();
+    static {
+        GC_NOTIFICATIONS.enableType(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION);
+    }
+
+    // the action of the notifications of ZGC and Shenandoah cycles
+    private static final String CONCURRENT_CYCLE_ACTION = "end of GC cycle";
+
+    private final Map<String, Pauses> pauses = new ConcurrentHashMap<>();
+
+    /**
+     * Starts listening to the garbage collections of the jvm on a new
+     * connection. The window so far is kept if the jvm was already tracked.
+     */
+    public void register(String id, MBeanServerConnection conn,
+                         Collection<ObjectName> garbageCollectors) throws IOException {
+        Pauses vmPauses = pauses.computeIfAbsent(id, key -> new Pauses());
+        for (ObjectName name : garbageCollectors) {
+            try {
+                conn.addNotificationListener(name, vmPauses, GC_NOTIFICATIONS, null);
+            } catch (InstanceNotFoundException e) {
+                // the collector is gone, nothing to listen to
+            }
+        }
+    }
+
+    /**
+     * Closes the current window of all jvms and starts a new one.
+     */
+    public void roll() {
+        for (Pauses vmPauses : pauses.values()) {
+            vmPauses.roll();
+        }
+    }
+
+    /**
+     * Returns the last closed window of the jvm, or null if it is not
+     * tracked.
+     */
+    public Window getWindow(String id) {
+        Pauses vmPauses = pauses.get(id);
+        return vmPauses == null ? null : vmPauses.window;
+    }
+
+    /**
+     * Forgets the jvms not in liveIds.
+     */
+    public void retain(Set<String> liveIds) {
+        pauses.keySet().retainAll(liveIds);
+    }
+
+    /**
+     * The collections of one window.
+     */
+    static class Window {
+        // durations in milli seconds
+        public final LatencyHistogram durations;
+        public final long nanos;
+        // the cause of the longest pause, null if there was none
+        public final String maxCause;
+        // bytes used before less after the pauses, over all pools
+        public final long freedBytes;
+
+        private Window(LatencyHistogram durations, long nanos, String maxCause, long freedBytes) {
+            this.durations = durations;
+            this.nanos = nanos;
+            this.maxCause = maxCause;
+            this.freedBytes = freedBytes;
+        }
+
+        public double getCollectionsPerSecond() {
+            return nanos <= 0 ? 0.0 : durations.getCount() * 1_000_000_000.0 / nanos;
+        }
+
+        public double getFreedBytesPerSecond() {
+            return nanos <= 0 ? 0.0 : freedBytes * 1_000_000_000.0 / nanos;
+        }
+    }
+
+    private static class Pauses implements NotificationListener {
+        private final LatencyHistogram durations = new LatencyHistogram();
+        private long windowStart = System.nanoTime();
+        private volatile Window window;
+        private long maxDuration = -1L;
+        private String maxCause;
+        private long freedBytes;
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            if (isConcurrentCycle(info)) {
+                return;
+            }
+            GcInfo gcInfo = info.getGcInfo();
+            long duration = gcInfo.getDuration();
+            durations.record(duration);
+            long freed = sumUsed(gcInfo.getMemoryUsageBeforeGc())
+                - sumUsed(gcInfo.getMemoryUsageAfterGc());
+            synchronized (this) {
+                if (duration > maxDuration) {
+                    maxDuration = duration;
+                    maxCause = info.getGcCause();
+                }
+                freedBytes += Math.max(0, freed);
+            }
+        }
+
+        private synchronized void roll() {
+            long now = System.nanoTime();
+            window = new Window(durations.getAndReset(), now - windowStart, maxCause, freedBytes);
+            windowStart = now;
+            maxDuration = -1L;
+            maxCause = null;
+            freedBytes = 0;
+        }
+
+        private static long sumUsed(Map<String, MemoryUsage> usages) {
+            long used = 0;
+            for (MemoryUsage usage : usages.values()) {
+                used += usage.getUsed();
+            }
+            return used;
+        }
+
+        /**
+         * Whether the notification is of a concurrent cycle, "G1 Concurrent
+         * GC", "ZGC Cycles", "ZGC Major Cycles", "Shenandoah Cycles", whose
+         * duration is the whole cycle rather than a pause. The pauses of
+         * these collectors are notified separately.
+         */
+        private static boolean isConcurrentCycle(GarbageCollectionNotificationInfo info) {
+            String name = info.getGcName();
+            return CONCURRENT_CYCLE_ACTION.equals(info.getGcAction())
+                || name.endsWith(" Cycles") || name.contains("Concurrent");
+        }
+    }
+}
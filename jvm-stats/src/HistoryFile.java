@@ -0,0 +1,403 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A bounded history of samples in a memory mapped ring file, so what the
+ * jvms looked like survives jvm-stats. Each sample of a jvm is a fixed
+ * width binary record written in place into the mapping, so recording
+ * makes no system calls, and the oldest records are overwritten once the
+ * file is full. Memory is stored in KiB. The display name of each jvm is
+ * kept once in a ring of name slots rather than in every record.
+ *
+ * A record stores what printAll needs, with the eden and old generation
+ * pools and the young and old collection counts standing in for all pools
+ * and collectors, so allocation and promotion rates can be computed again.
+ *
+ * Layout: a header, NAME_SLOTS name slots of NAME_SLOT_SIZE bytes (pid,
+ * length, UTF-8 name) and the records. The header counts all records ever
+ * written, record n is at n % capacity and stores n so a reader can tell a
+ * record that is being overwritten.
+ */
+class HistoryFile implements Closeable {
+    static final int RECORD_SIZE = 128;
+    private static final long MAGIC = 0x4a564d5354415453L; // JVMSTATS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int NAME_SLOTS = 256;
+    private static final int NAME_SLOT_SIZE = 128;
+    private static final int RECORDS_OFFSET = HEADER_SIZE + NAME_SLOTS * NAME_SLOT_SIZE;
+
+    // header
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_RECORD_SIZE = 12;
+    private static final int H_CAPACITY = 16;
+    private static final int H_NEXT_NAME_SLOT = 20;
+    private static final int H_WRITTEN = 24;
+
+    // name slot
+    private static final int N_PID = 0;
+    private static final int N_LENGTH = 4;
+    private static final int N_NAME = 6;
+
+    // record, memory in KiB
+    private static final int R_SEQUENCE = 0;
+    private static final int R_MILLIS = 8;
+    private static final int R_CPU_TIME = 16;
+    private static final int R_GC_TIME = 24;
+    private static final int R_UPTIME = 32;
+    private static final int R_RSS = 40;
+    private static final int R_IO = 48;
+    private static final int R_BUFFER_POOL = 56;
+    private static final int R_HEAP_USED = 64;
+    private static final int R_HEAP_COMMITTED = 68;
+    private static final int R_HEAP_MAX = 72;
+    private static final int R_NON_HEAP_USED = 76;
+    private static final int R_NON_HEAP_COMMITTED = 80;
+    private static final int R_EDEN_USED = 84;
+    private static final int R_EDEN_COMMITTED = 88;
+    private static final int R_OLD_USED = 92;
+    private static final int R_PID = 96;
+    private static final int R_FILES = 100;
+    private static final int R_THREADS = 104;
+    private static final int R_CLASSES = 108;
+    private static final int R_YOUNG_COLLECTIONS = 112;
+    private static final int R_OLD_COLLECTIONS = 116;
+    private static final int R_LOAD = 120;
+    private static final int R_NAME_SLOT = 124;
+    private static final int R_STATUS = 126;
+
+    private static final String[] COLLECTOR_NAMES = { "young", "old" };
+    private static final long[] NO_COLLECTION_TIMES = { 0L, 0L };
+    private static final MBeanData.Status[] STATUSES = MBeanData.Status.values();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    // for writing: the slot of each pid + 1, the name in each slot, and
+    // when each pid was last recorded and its uptime then
+    private final LongLongMap pidSlots = new LongLongMap(64);
+    private final String[] slotNames = new String[NAME_SLOTS];
+    private final LongLongMap lastRecorded = new LongLongMap(64);
+    private final LongLongMap lastUptimes = new LongLongMap(64);
+    private final long recordIntervalMillis;
+
+    private HistoryFile(FileChannel channel, MappedByteBuffer buffer, long recordIntervalMillis) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = buffer.getInt(H_CAPACITY);
+        this.recordIntervalMillis = recordIntervalMillis;
+    }
+
+    /**
+     * Opens path for recording a jvm at most every recordInterval, creating
+     * it with room for size bytes if it does not exist. Only one jvm-stats
+     * can record to a file at a time.
+     */
+    public static HistoryFile openForWriting(Path path, long size, long recordIntervalMillis)
+        throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.tryLock() == null) {
+                throw new IOException(path + " is recorded by another jvm-stats");
+            }
+            boolean create = channel.size() == 0;
+            int capacity = create
+                ? (int) (Math.min(Integer.MAX_VALUE, Math.max(size, RECORDS_OFFSET + RECORD_SIZE))
+                         - RECORDS_OFFSET) / RECORD_SIZE
+                : readCapacity(path, channel);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                                  RECORDS_OFFSET + (long) capacity * RECORD_SIZE);
+            if (create) {
+                buffer.putLong(H_MAGIC, MAGIC);
+                buffer.putInt(H_VERSION, VERSION);
+                buffer.putInt(H_RECORD_SIZE, RECORD_SIZE);
+                buffer.putInt(H_CAPACITY, capacity);
+                buffer.putInt(H_NEXT_NAME_SLOT, 0);
+                buffer.putLong(H_WRITTEN, 0L);
+            }
+            HistoryFile history = new HistoryFile(channel, buffer, recordIntervalMillis);
+            history.loadNames();
+            return history;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static HistoryFile openForReading(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            int capacity = readCapacity(path, channel);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                                  RECORDS_OFFSET + (long) capacity * RECORD_SIZE);
+            return new HistoryFile(channel, buffer, 0L);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Records the jvms not recorded within the record interval. Timed out
+     * and unreachable jvms and jvms without a numeric pid are left out.
+     */
+    public void append(List<MBeanData> beans, long millis) {
+        for (MBeanData bean : beans) {
+            if (!bean.hasData() || !HsPerfDataCollector.isPid(bean.id)) {
+                continue;
+            }
+            int pid = Integer.parseInt(bean.id);
+            long last = lastRecorded.get(pid, Long.MIN_VALUE);
+            if (last != Long.MIN_VALUE && (millis - last < recordIntervalMillis
+                                           // not sampled again, see Cadence
+                                           || bean.uptime == lastUptimes.get(pid, -1L))) {
+                continue;
+            }
+            lastRecorded.put(pid, millis);
+            lastUptimes.put(pid, bean.uptime);
+            write(bean, pid, getNameSlot(pid, bean.name), millis);
+        }
+    }
+
+    /**
+     * Reads the records from sinceMillis on, of pid or of all jvms if pid
+     * is null, oldest first.
+     */
+    public List<Record> read(long sinceMillis, String pid) {
+        long written = buffer.getLong(H_WRITTEN);
+        List<Record> records = new ArrayList<>();
+        for (long n = Math.max(0, written - capacity); n < written; n++) {
+            Record record = readRecord(n, pid);
+            if (record != null && record.millis >= sinceMillis) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reads the newest record of pid before beforeMillis, or null.
+     */
+    public Record readLast(long beforeMillis, String pid) {
+        long written = buffer.getLong(H_WRITTEN);
+        for (long n = written - 1; n >= Math.max(0, written - capacity); n--) {
+            Record record = readRecord(n, pid);
+            if (record != null && record.millis < beforeMillis) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * A sample of a jvm and when it was taken.
+     */
+    static class Record {
+        public final long millis;
+        public final MBeanData bean;
+
+        private Record(long millis, MBeanData bean) {
+            this.millis = millis;
+            this.bean = bean;
+        }
+    }
+
+    private static int readCapacity(Path path, FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // read the whole header
+        }
+        if (header.hasRemaining() || header.getLong(H_MAGIC) != MAGIC
+            || header.getInt(H_VERSION) != VERSION
+            || header.getInt(H_RECORD_SIZE) != RECORD_SIZE) {
+            throw new IOException(path + " is not a jvm-stats history file");
+        }
+        int capacity = header.getInt(H_CAPACITY);
+        if (capacity <= 0 || channel.size() < RECORDS_OFFSET + (long) capacity * RECORD_SIZE) {
+            throw new IOException(path + " is truncated");
+        }
+        return capacity;
+    }
+
+    private void loadNames() {
+        for (int slot = 0; slot < NAME_SLOTS; slot++) {
+            int pid = buffer.getInt(HEADER_SIZE + slot * NAME_SLOT_SIZE + N_PID);
+            if (pid > 0) {
+                pidSlots.put(pid, slot + 1);
+                slotNames[slot] = readName(slot);
+            }
+        }
+    }
+
+    /**
+     * The name slot of pid, taking the next slot in the ring for a new pid
+     * and rewriting the slot if the name changed.
+     */
+    private int getNameSlot(int pid, String name) {
+        int slot = (int) pidSlots.get(pid, 0L) - 1;
+        if (slot >= 0 && name.equals(slotNames[slot])) {
+            return slot;
+        }
+        if (slot < 0) {
+            slot = buffer.getInt(H_NEXT_NAME_SLOT);
+            buffer.putInt(H_NEXT_NAME_SLOT, (slot + 1) % NAME_SLOTS);
+            int oldPid = buffer.getInt(HEADER_SIZE + slot * NAME_SLOT_SIZE + N_PID);
+            if (oldPid > 0) {
+                pidSlots.put(oldPid, 0L);
+            }
+            pidSlots.put(pid, slot + 1);
+        }
+        int offset = HEADER_SIZE + slot * NAME_SLOT_SIZE;
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(utf8.length, NAME_SLOT_SIZE - N_NAME);
+        buffer.putInt(offset + N_PID, pid);
+        buffer.putShort(offset + N_LENGTH, (short) length);
+        buffer.put(offset + N_NAME, utf8, 0, length);
+        slotNames[slot] = name;
+        return slot;
+    }
+
+    private String readName(int slot) {
+        int offset = HEADER_SIZE + slot * NAME_SLOT_SIZE;
+        int length = Math.min(buffer.getShort(offset + N_LENGTH), NAME_SLOT_SIZE - N_NAME);
+        byte[] utf8 = new byte[Math.max(0, length)];
+        buffer.get(offset + N_NAME, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private void write(MBeanData bean, int pid, int nameSlot, long millis) {
+        long n = buffer.getLong(H_WRITTEN);
+        int offset = RECORDS_OFFSET + (int) (n % capacity) * RECORD_SIZE;
+        // invalidate first, a reader may be reading the old record
+        buffer.putLong(offset + R_SEQUENCE, -1L);
+        buffer.putLong(offset + R_MILLIS, millis);
+        buffer.putLong(offset + R_CPU_TIME, bean.cpuTime);
+        buffer.putLong(offset + R_GC_TIME, bean.gcTime);
+        buffer.putLong(offset + R_UPTIME, bean.uptime);
+        buffer.putLong(offset + R_RSS, bean.rss);
+        buffer.putLong(offset + R_IO, bean.getIo());
+        buffer.putLong(offset + R_BUFFER_POOL, bean.getBufferPoolMem());
+        buffer.putInt(offset + R_HEAP_USED, kib(bean.heapMemory.getUsed()));
+        buffer.putInt(offset + R_HEAP_COMMITTED, kib(bean.heapMemory.getCommitted()));
+        buffer.putInt(offset + R_HEAP_MAX, kib(bean.heapMemory.getMax()));
+        buffer.putInt(offset + R_NON_HEAP_USED, kib(bean.nonHeapMemory.getUsed()));
+        buffer.putInt(offset + R_NON_HEAP_COMMITTED, kib(bean.nonHeapMemory.getCommitted()));
+        int eden = MBeanData.findPool(bean, true);
+        int old = MBeanData.findPool(bean, false);
+        buffer.putInt(offset + R_EDEN_USED, eden < 0 ? -1 : kib(bean.poolUsages[eden].getUsed()));
+        buffer.putInt(offset + R_EDEN_COMMITTED,
+                      eden < 0 ? -1 : kib(bean.poolUsages[eden].getCommitted()));
+        buffer.putInt(offset + R_OLD_USED, old < 0 ? -1 : kib(bean.poolUsages[old].getUsed()));
+        buffer.putInt(offset + R_PID, pid);
+        buffer.putInt(offset + R_FILES, (int) bean.openFileDescriptorCount);
+        buffer.putInt(offset + R_THREADS, bean.threadCount);
+        buffer.putInt(offset + R_CLASSES, bean.loadedClassCount);
+        buffer.putInt(offset + R_YOUNG_COLLECTIONS, (int) bean.getCollectionCount(true));
+        buffer.putInt(offset + R_OLD_COLLECTIONS, (int) bean.getCollectionCount(false));
+        buffer.putFloat(offset + R_LOAD, (float) bean.processCpuLoad);
+        buffer.putShort(offset + R_NAME_SLOT, (short) nameSlot);
+        buffer.put(offset + R_STATUS, (byte) bean.status.ordinal());
+        buffer.putLong(offset + R_SEQUENCE, n);
+        buffer.putLong(H_WRITTEN, n + 1);
+    }
+
+    /**
+     * Reads record n if it is of pid, or of any jvm if pid is null. Null if
+     * it is not, or if it has been overwritten since written was read.
+     */
+    private Record readRecord(long n, String pid) {
+        int offset = RECORDS_OFFSET + (int) (n % capacity) * RECORD_SIZE;
+        if (buffer.getLong(offset + R_SEQUENCE) != n) {
+            return null;
+        }
+        String id = Integer.toString(buffer.getInt(offset + R_PID));
+        if (pid != null && !pid.equals(id)) {
+            return null;
+        }
+        try {
+            Record record = new Record(buffer.getLong(offset + R_MILLIS), readBean(offset, id));
+            return buffer.getLong(offset + R_SEQUENCE) == n ? record : null;
+        } catch (IllegalArgumentException e) {
+            // torn by the writer, MemoryUsage checks its values
+            return null;
+        }
+    }
+
+    private MBeanData readBean(int offset, String id) {
+        int nameSlot = buffer.getShort(offset + R_NAME_SLOT);
+        String name = "";
+        if (nameSlot >= 0 && nameSlot < NAME_SLOTS
+            && buffer.getInt(HEADER_SIZE + nameSlot * NAME_SLOT_SIZE + N_PID) == Integer.parseInt(id)) {
+            // the slot may have been taken by another jvm since
+            name = readName(nameSlot);
+        }
+        long io = buffer.getLong(offset + R_IO);
+        long bufferPool = buffer.getLong(offset + R_BUFFER_POOL);
+        int status = buffer.get(offset + R_STATUS);
+
+        List<String> poolNames = new ArrayList<>();
+        List<MemoryUsage> poolUsages = new ArrayList<>();
+        long edenUsed = bytes(buffer.getInt(offset + R_EDEN_USED));
+        if (edenUsed >= 0) {
+            poolNames.add("eden");
+            poolUsages.add(new MemoryUsage(-1L, edenUsed,
+                                           bytes(buffer.getInt(offset + R_EDEN_COMMITTED)), -1L));
+        }
+        long oldUsed = bytes(buffer.getInt(offset + R_OLD_USED));
+        if (oldUsed >= 0) {
+            poolNames.add("old");
+            poolUsages.add(new MemoryUsage(-1L, oldUsed, oldUsed, -1L));
+        }
+
+        return new MBeanData.Builder().id(id)
+            .name(name)
+            .cpuTime(buffer.getLong(offset + R_CPU_TIME))
+            .gcTime(buffer.getLong(offset + R_GC_TIME))
+            .heapMemory(new MemoryUsage(-1L, bytes(buffer.getInt(offset + R_HEAP_USED)),
+                                        bytes(buffer.getInt(offset + R_HEAP_COMMITTED)),
+                                        bytes(buffer.getInt(offset + R_HEAP_MAX))))
+            .nonHeapMemory(new MemoryUsage(-1L, bytes(buffer.getInt(offset + R_NON_HEAP_USED)),
+                                           bytes(buffer.getInt(offset + R_NON_HEAP_COMMITTED)),
+                                           -1L))
+            .openFileDescriptorCount(buffer.getInt(offset + R_FILES))
+            .maxFileDescriptorCount(-1L)
+            .threadCount(buffer.getInt(offset + R_THREADS))
+            .nioBufferPoolDirectMemoryUsed(bufferPool)
+            .nioBufferPoolMappedMemoryUsed(bufferPool < 0 ? -1L : 0L)
+            .loadedClassCount(buffer.getInt(offset + R_CLASSES))
+            .processCpuLoad(buffer.getFloat(offset + R_LOAD))
+            .uptime(buffer.getLong(offset + R_UPTIME))
+            .rss(buffer.getLong(offset + R_RSS))
+            .ioReadBytes(io)
+            .ioWriteBytes(io < 0 ? -1L : 0L)
+            .collectors(COLLECTOR_NAMES,
+                        new long[] {
+                            buffer.getInt(offset + R_YOUNG_COLLECTIONS),
+                            buffer.getInt(offset + R_OLD_COLLECTIONS)
+                        },
+                        NO_COLLECTION_TIMES)
+            .pools(poolNames.toArray(new String[0]), poolUsages.toArray(new MemoryUsage[0]))
+            .status(status >= 0 && status < STATUSES.length ? STATUSES[status] : MBeanData.Status.OK)
+            .finish();
+    }
+
+    private static int kib(long bytes) {
+        return bytes < 0 ? -1 : (int) Math.min(Integer.MAX_VALUE, bytes >> 10);
+    }
+
+    private static long bytes(int kib) {
+        return kib < 0 ? -1L : (long) kib << 10;
+    }
+}
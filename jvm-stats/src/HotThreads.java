@@ -0,0 +1,122 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+/**
+ * Finds the threads of a jvm that used the most cpu since the previous
+ * sample. A sample costs three remote calls however many threads there
+ * are: all thread ids, the cpu times of all of them in one batched
+ * getThreadCpuTime(long[]), and the ThreadInfo of the hottest. The cpu
+ * time of each thread is kept between samples in a LongLongMap.
+ */
+class HotThreads {
+    private static final String[] LONG_ARRAY_SIGNATURE = { long[].class.getName() };
+
+    private final Map<String, VmThreads> vms = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the top hottest threads of the jvm, hottest first. The cpu
+     * time is since the previous sample of the jvm, or since the threads
+     * started for the first sample.
+     */
+    public List<HotThread> sample(String id, MBeanServerConnection conn, int top)
+        throws IOException, JMException {
+        VmThreads vmThreads = vms.computeIfAbsent(id, key -> new VmThreads());
+        synchronized (vmThreads) {
+            return vmThreads.sample(conn, top);
+        }
+    }
+
+    /**
+     * Forgets the jvms not in liveIds.
+     */
+    public void retain(Set<String> liveIds) {
+        vms.keySet().retainAll(liveIds);
+    }
+
+    static class HotThread {
+        public final long threadId;
+        public final String name;
+        public final Thread.State state;
+        // in nano seconds
+        public final long cpuTime;
+        // cpuTime / time since previous sample, -1 for the first sample
+        public final double cpuFraction;
+
+        private HotThread(long threadId, String name, Thread.State state, long cpuTime,
+                          double cpuFraction) {
+            this.threadId = threadId;
+            this.name = name;
+            this.state = state;
+            this.cpuTime = cpuTime;
+            this.cpuFraction = cpuFraction;
+        }
+    }
+
+    private static class VmThreads {
+        // thread id to cpu time at the previous sample, and the map being
+        // filled by the current sample, swapped after each sample
+        private LongLongMap lastCpuTimes = new LongLongMap(64);
+        private LongLongMap cpuTimes = new LongLongMap(64);
+        private long lastNanoTime = -1;
+
+        private List<HotThread> sample(MBeanServerConnection conn, int top)
+            throws IOException, JMException {
+            long[] threadIds = (long[]) conn.getAttribute(JmxCollector.THREADING, "AllThreadIds");
+            long[] threadCpuTimes = (long[]) conn.invoke(JmxCollector.THREADING, "getThreadCpuTime",
+                                                         new Object[] { threadIds },
+                                                         LONG_ARRAY_SIGNATURE);
+            long now = System.nanoTime();
+
+            // the top hottest, sorted by cpu time descending
+            long[] topIds = new long[Math.min(top, threadIds.length)];
+            long[] topCpuTimes = new long[topIds.length];
+            int found = 0;
+            cpuTimes.clear();
+            for (int i = 0; i < threadIds.length; i++) {
+                if (threadCpuTimes[i] < 0) {
+                    // the thread has died or cpu time is disabled
+                    continue;
+                }
+                cpuTimes.put(threadIds[i], threadCpuTimes[i]);
+                long cpuTime = threadCpuTimes[i] - lastCpuTimes.get(threadIds[i], 0L);
+                int pos = found < topIds.length ? found++ : topIds.length;
+                while (pos > 0 && topCpuTimes[pos - 1] < cpuTime) {
+                    if (pos < topIds.length) {
+                        topIds[pos] = topIds[pos - 1];
+                        topCpuTimes[pos] = topCpuTimes[pos - 1];
+                    }
+                    pos--;
+                }
+                if (pos < topIds.length) {
+                    topIds[pos] = threadIds[i];
+                    topCpuTimes[pos] = cpuTime;
+                }
+            }
+            LongLongMap swap = lastCpuTimes;
+            lastCpuTimes = cpuTimes;
+            cpuTimes = swap;
+            long elapsed = lastNanoTime < 0 ? -1 : now - lastNanoTime;
+            lastNanoTime = now;
+
+            long[] hotIds = Arrays.copyOf(topIds, found);
+            CompositeData[] infos = (CompositeData[]) conn.invoke(JmxCollector.THREADING,
+                                                                  "getThreadInfo",
+                                                                  new Object[] { hotIds },
+                                                                  LONG_ARRAY_SIGNATURE);
+            List<HotThread> hot = new ArrayList<>();
+            for (int i = 0; i < found; i++) {
+                ThreadInfo info = infos[i] == null ? null : ThreadInfo.from(infos[i]);
+                hot.add(new HotThread(hotIds[i],
+                                      info == null ? "" : info.getThreadName(),
+                                      info == null ? Thread.State.TERMINATED : info.getThreadState(),
+                                      topCpuTimes[i],
+                                      elapsed <= 0 ? -1.0 : (double) topCpuTimes[i] / elapsed));
+            }
+            return hot;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads MBeanData from the hsperfdata files that hotspot jvms publish their
+ * performance counters in (/tmp/hsperfdata_USER/PID, the files jstat
+ * reads). The files are memory mapped read-only and the counters are read
+ * directly, so no attach, management agent or JMX is needed and a sample
+ * costs microseconds. Works on jvms with -XX:+DisableAttachMechanism, but
+ * not on jvms with -XX:-UsePerfData.
+ *
+ * hsperfdata has no cpu time, so that is read from /proc/PID/stat through
+ * ProcCollector. It has no file descriptor or buffer pool counts, those are
+ * -1.
+ */
+class HsPerfDataCollector {
+    static final String HSPERFDATA_PREFIX = "hsperfdata_";
+    private static final int MAGIC = 0xcafec0c0;
+    // header offsets
+    private static final int BYTE_ORDER_OFFSET = 4;
+    private static final int ACCESSIBLE_OFFSET = 7;
+    private static final int ENTRY_OFFSET_OFFSET = 24;
+    private static final int NUM_ENTRIES_OFFSET = 28;
+    // offsets within an entry
+    private static final int ENTRY_LENGTH = 0;
+    private static final int ENTRY_NAME_OFFSET = 4;
+    private static final int ENTRY_VECTOR_LENGTH = 8;
+    private static final int ENTRY_DATA_TYPE = 12;
+    private static final int ENTRY_DATA_OFFSET = 16;
+    // numbered counters (collectors, generations, spaces) can have gaps, e.g.
+    // ZGC only has generation 1, so this many numbers are looked for
+    private static final int MAX_NUMBERED = 8;
+
+    private final ProcCollector proc;
+    private final Map<String, PerfData> perfDatas = new ConcurrentHashMap<>();
+
+    public HsPerfDataCollector(ProcCollector proc) {
+        this.proc = proc;
+    }
+
+    /**
+     * Lists the hsperfdata files of all users that are readable, keyed by
+     * vm id.
+     */
+    public static Map<String, Path> list() {
+        Map<String, Path> files = new HashMap<>();
+        Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
+        try (DirectoryStream<Path> userDirs =
+             Files.newDirectoryStream(tmpDir, HSPERFDATA_PREFIX + "*")) {
+            for (Path userDir : userDirs) {
+                try (DirectoryStream<Path> vmFiles = Files.newDirectoryStream(userDir)) {
+                    for (Path vmFile : vmFiles) {
+                        String id = vmFile.getFileName().toString();
+                        if (isPid(id)) {
+                            files.put(id, vmFile);
+                        }
+                    }
+                } catch (IOException e) {
+                    // another user's directory
+                }
+            }
+        } catch (IOException e) {
+            // no hsperfdata directories
+        }
+        return files;
+    }
+
+    /**
+     * Returns the data of the jvm, or null if its hsperfdata file cannot be
+     * read.
+     */
+    public MBeanData collect(String id, Path file) {
+        try {
+            PerfData perfData = perfDatas.get(id);
+            if (perfData == null) {
+                perfData = new PerfData(id, file, proc);
+                perfDatas.put(id, perfData);
+            }
+            return perfData.read();
+        } catch (IOException | RuntimeException e) {
+            perfDatas.remove(id);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the main class and arguments of the jvm, what
+     * VirtualMachineDescriptor.displayName is, or null if its hsperfdata
+     * file cannot be read or is not initialized yet.
+     */
+    public static String readJavaCommand(String id, Path file) {
+        try {
+            PerfData perfData = new PerfData(id, file, null);
+            if (perfData.buffer.get(ACCESSIBLE_OFFSET) == 0) {
+                return null;
+            }
+            perfData.index(perfData.buffer.getInt(NUM_ENTRIES_OFFSET));
+            return perfData.javaCommand;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Unmaps the files of all jvms not in liveIds.
+     */
+    public void retain(Set<String> liveIds) {
+        perfDatas.keySet().retainAll(liveIds);
+    }
+
+    static boolean isPid(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The mapped hsperfdata file of one jvm, with the offsets of the
+     * counters that are read.
+     */
+    private static class PerfData {
+        private final String id;
+        private final MappedByteBuffer buffer;
+        private final ProcCollector proc;
+        private int numEntries = -1;
+
+        private int hrtFrequency;
+        private int createVmBeginTime;
+        private int threadsLive;
+        private int loadedClasses;
+        private int unloadedClasses;
+        private int sharedLoadedClasses;
+        private int sharedUnloadedClasses;
+        private int metaspaceUsed;
+        private int metaspaceCapacity;
+        private String[] collectorNames;
+        private int[] collectorInvocations;
+        private int[] collectorTimes;
+        private int[] generationCapacities;
+        private int[] generationMaxCapacities;
+        private String[] spaceNames;
+        private int[] spaceUseds;
+        private int[] spaceCapacities;
+        private int[] spaceMaxCapacities;
+        private String javaCommand;
+
+        private PerfData(String id, Path file, ProcCollector proc) throws IOException {
+            this.id = id;
+            this.proc = proc;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a hsperfdata file: " + file);
+            }
+            buffer.order(buffer.get(BYTE_ORDER_OFFSET) == 0
+                         ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private MBeanData read() throws IOException {
+            if (buffer.get(ACCESSIBLE_OFFSET) == 0) {
+                throw new IOException("hsperfdata of " + id + " is not initialized yet");
+            }
+            int entries = buffer.getInt(NUM_ENTRIES_OFFSET);
+            if (entries != numEntries) {
+                // counters are only ever added, re-index when that happens
+                index(entries);
+            }
+
+            long frequency = getLong(hrtFrequency);
+            long gcTicks = sum(collectorTimes);
+            long gcTime = frequency > 0 ? gcTicks * 1_000 / frequency : -1L;
+            long[] collectionCounts = new long[collectorNames.length];
+            long[] collectionTimes = new long[collectorNames.length];
+            for (int i = 0; i < collectorNames.length; i++) {
+                collectionCounts[i] = getLong(collectorInvocations[i]);
+                collectionTimes[i] = frequency > 0
+                    ? getLong(collectorTimes[i]) * 1_000 / frequency : -1L;
+            }
+            MemoryUsage[] spaceUsages = new MemoryUsage[spaceNames.length];
+            for (int i = 0; i < spaceNames.length; i++) {
+                long used = getLong(spaceUseds[i]);
+                long committed = Math.max(used, getLong(spaceCapacities[i]));
+                long max = Math.max(committed, getLong(spaceMaxCapacities[i]));
+                spaceUsages[i] = new MemoryUsage(-1L, used, committed, max);
+            }
+
+            long heapUsed = sum(spaceUseds);
+            long heapCommitted = Math.max(heapUsed, sum(generationCapacities));
+            long heapMax = Math.max(heapCommitted, sum(generationMaxCapacities));
+            long nonHeapUsed = Math.max(0, getLong(metaspaceUsed));
+            long nonHeapCommitted = Math.max(nonHeapUsed, getLong(metaspaceCapacity));
+
+            long uptime = System.currentTimeMillis() - getLong(createVmBeginTime);
+            long cpuTime = proc.readCpuTime(id);
+
+            return new MBeanData.Builder().id(id)
+                .name(javaCommand)
+                .cpuTime(cpuTime)
+                .gcTime(gcTime)
+                .heapMemory(new MemoryUsage(-1L, heapUsed, heapCommitted, heapMax))
+                .nonHeapMemory(new MemoryUsage(-1L, nonHeapUsed, nonHeapCommitted, -1L))
+                .openFileDescriptorCount(-1L)
+                .maxFileDescriptorCount(-1L)
+                .threadCount((int) getLong(threadsLive))
+                .nioBufferPoolDirectMemoryUsed(-1L)
+                .nioBufferPoolMappedMemoryUsed(-1L)
+                .loadedClassCount((int) (getLong(loadedClasses) + getLong(sharedLoadedClasses)
+                                         - getLong(unloadedClasses)
+                                         - getLong(sharedUnloadedClasses)))
+                .processCpuLoad(proc.getCpuLoad(id, cpuTime, uptime))
+                .uptime(uptime)
+                .collectors(collectorNames, collectionCounts, collectionTimes)
+                .pools(spaceNames, spaceUsages)
+                .finish();
+        }
+
+        private void index(int entries) {
+            Map<String, Integer> offsets = new HashMap<>();
+            Map<String, String> strings = new HashMap<>();
+            int entry = buffer.getInt(ENTRY_OFFSET_OFFSET);
+            for (int i = 0; i < entries; i++) {
+                String name = getString(entry + buffer.getInt(entry + ENTRY_NAME_OFFSET),
+                                        Integer.MAX_VALUE);
+                int dataOffset = entry + buffer.getInt(entry + ENTRY_DATA_OFFSET);
+                int vectorLength = buffer.getInt(entry + ENTRY_VECTOR_LENGTH);
+                char dataType = (char) buffer.get(entry + ENTRY_DATA_TYPE);
+                if (dataType == 'J' && vectorLength == 0) {
+                    offsets.put(name, dataOffset);
+                } else if (dataType == 'B') {
+                    strings.put(name, getString(dataOffset, vectorLength));
+                }
+                entry += buffer.getInt(entry + ENTRY_LENGTH);
+            }
+
+            hrtFrequency = offset(offsets, "sun.os.hrt.frequency");
+            createVmBeginTime = offset(offsets, "sun.rt.createVmBeginTime");
+            threadsLive = offset(offsets, "java.threads.live");
+            loadedClasses = offset(offsets, "java.cls.loadedClasses");
+            unloadedClasses = offset(offsets, "java.cls.unloadedClasses");
+            sharedLoadedClasses = offset(offsets, "java.cls.sharedLoadedClasses");
+            sharedUnloadedClasses = offset(offsets, "java.cls.sharedUnloadedClasses");
+            metaspaceUsed = offset(offsets, "sun.gc.metaspace.used");
+            metaspaceCapacity = offset(offsets, "sun.gc.metaspace.capacity");
+            generationCapacities = offsets(offsets, "sun.gc.generation.%d.capacity");
+            generationMaxCapacities = offsets(offsets, "sun.gc.generation.%d.maxCapacity");
+
+            List<String> collectors = new ArrayList<>();
+            for (int i = 0; i < MAX_NUMBERED; i++) {
+                String prefix = "sun.gc.collector." + i;
+                if (offsets.containsKey(prefix + ".time")) {
+                    collectors.add(prefix);
+                }
+            }
+            collectorNames = names(collectors, strings);
+            collectorInvocations = offsets(offsets, collectors, ".invocations");
+            collectorTimes = offsets(offsets, collectors, ".time");
+
+            // spaces are named as generation.space, e.g. young.eden or old.space
+            List<String> spaces = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (int generation = 0; generation < MAX_NUMBERED; generation++) {
+                String generationPrefix = "sun.gc.generation." + generation;
+                for (int space = 0; space < MAX_NUMBERED; space++) {
+                    String prefix = generationPrefix + ".space." + space;
+                    if (offsets.containsKey(prefix + ".used")) {
+                        spaces.add(prefix);
+                        names.add(strings.getOrDefault(generationPrefix + ".name", "" + generation)
+                                  + "." + strings.getOrDefault(prefix + ".name", "" + space));
+                    }
+                }
+            }
+            spaceNames = names.toArray(new String[0]);
+            spaceUseds = offsets(offsets, spaces, ".used");
+            spaceCapacities = offsets(offsets, spaces, ".capacity");
+            spaceMaxCapacities = offsets(offsets, spaces, ".maxCapacity");
+            javaCommand = strings.getOrDefault("sun.rt.javaCommand", "");
+            numEntries = entries;
+        }
+
+        private static int offset(Map<String, Integer> offsets, String name) {
+            return offsets.getOrDefault(name, -1);
+        }
+
+        /**
+         * The offsets of the numbered counters that exist.
+         */
+        private static int[] offsets(Map<String, Integer> offsets, String nameFormat) {
+            List<Integer> found = new ArrayList<>();
+            for (int i = 0; i < MAX_NUMBERED; i++) {
+                Integer offset = offsets.get(String.format(nameFormat, i));
+                if (offset != null) {
+                    found.add(offset);
+                }
+            }
+            return found.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        /**
+         * The offsets of prefix + suffix for each prefix, -1 if it does not
+         * exist.
+         */
+        private static int[] offsets(Map<String, Integer> offsets, List<String> prefixes,
+                                     String suffix) {
+            int[] found = new int[prefixes.size()];
+            for (int i = 0; i < found.length; i++) {
+                found[i] = offset(offsets, prefixes.get(i) + suffix);
+            }
+            return found;
+        }
+
+        private static String[] names(List<String> prefixes, Map<String, String> strings) {
+            String[] names = new String[prefixes.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = strings.getOrDefault(prefixes.get(i) + ".name", prefixes.get(i));
+            }
+            return names;
+        }
+
+        private long getLong(int offset) {
+            return offset < 0 ? -1L : buffer.getLong(offset);
+        }
+
+        private long sum(int[] offsets) {
+            long sum = 0;
+            for (int offset : offsets) {
+                sum += Math.max(0, getLong(offset));
+            }
+            return sum;
+        }
+
+        private String getString(int offset, int maxLength) {
+            int end = offset;
+            while (end < buffer.limit() && end - offset < maxLength && buffer.get(end) != 0) {
+                end++;
+            }
+            byte[] bytes = new byte[end - offset];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(offset + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import jdk.jfr.consumer.*;
+import jdk.management.jfr.RemoteRecordingStream;
+
+/**
+ * Streams a small set of flight recorder events from the jvms over their
+ * JMX connections: garbage collections, allocation samples, safepoints
+ * and contended monitor enters. The events are folded into a summary of
+ * the current window as they arrive and not kept, which roll closes and
+ * makes available through getWindow. The allocation samples are
+ * throttled and short stalls are not recorded, so the jvms stay cheap to
+ * record, and the chunks kept on the local disk are bounded by size and
+ * age.
+ */
+class JfrStreams {
+    private static final String GARBAGE_COLLECTION = "jdk.GarbageCollection";
+    private static final String ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+    private static final String SAFEPOINT = "jdk.SafepointBegin";
+    private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+    // allocation samples per second of each jvm
+    private static final String ALLOCATION_THROTTLE = "100/s";
+    // stalls shorter than this are not recorded
+    static final Duration STALL_THRESHOLD = Duration.ofMillis(10);
+    private static final long MAX_CHUNK_BYTES = 16L << 20;
+    private static final Duration MAX_CHUNK_AGE = Duration.ofMinutes(1);
+    // allocation sites counted per window, later new sites are dropped
+    private static final int MAX_SITES = 256;
+
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    /**
+     * Starts streaming from the jvm on a new connection, closing the stream
+     * of the previous connection. Jvms without a flight recorder MBean are
+     * skipped.
+     */
+    public void register(String id, MBeanServerConnection conn) {
+        Target target = new Target();
+        Target previous = targets.put(id, target);
+        if (previous != null) {
+            target.window = previous.window;
+            previous.close();
+        }
+        try {
+            RemoteRecordingStream stream = new RemoteRecordingStream(conn);
+            stream.setMaxSize(MAX_CHUNK_BYTES);
+            stream.setMaxAge(MAX_CHUNK_AGE);
+            stream.setOrdered(false);
+            stream.setReuse(true);
+            stream.enable(GARBAGE_COLLECTION);
+            stream.enable(ALLOCATION_SAMPLE).with("throttle", ALLOCATION_THROTTLE).withStackTrace();
+            stream.enable(SAFEPOINT).withThreshold(STALL_THRESHOLD);
+            stream.enable(MONITOR_ENTER).withThreshold(STALL_THRESHOLD).withStackTrace();
+            stream.onEvent(GARBAGE_COLLECTION, target::onGarbageCollection);
+            stream.onEvent(ALLOCATION_SAMPLE, target::onAllocation);
+            stream.onEvent(SAFEPOINT, target::onSafepoint);
+            stream.onEvent(MONITOR_ENTER, target::onMonitorEnter);
+            stream.startAsync();
+            target.stream = stream;
+        } catch (IOException | RuntimeException e) {
+            // no flight recorder, or it is not accessible
+            targets.remove(id, target);
+        }
+    }
+
+    /**
+     * Closes the current window of all jvms and starts a new one.
+     */
+    public void roll() {
+        for (Target target : targets.values()) {
+            target.roll();
+        }
+    }
+
+    /**
+     * Returns the last closed window of the jvm, or null if it is not
+     * streamed.
+     */
+    public Window getWindow(String id) {
+        Target target = targets.get(id);
+        return target == null ? null : target.window;
+    }
+
+    /**
+     * Closes the streams of the jvms not in liveIds.
+     */
+    public void retain(Set<String> liveIds) {
+        for (Iterator<Map.Entry<String, Target>> it = targets.entrySet().iterator();
+             it.hasNext();) {
+            Map.Entry<String, Target> entry = it.next();
+            if (!liveIds.contains(entry.getKey())) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+    }
+
+    public void closeAll() {
+        retain(Collections.emptySet());
+    }
+
+    /**
+     * The events of one window.
+     */
+    static class Window {
+        public final long nanos;
+        // sampled allocation weight, an estimate of the bytes allocated
+        public final long allocatedBytes;
+        // the allocation site with the most weight, null if none
+        public final String topSite;
+        public final long topSiteBytes;
+        public final long garbageCollections;
+        public final long safepoints;
+        public final long monitorEnters;
+        // the longest gc pause, safepoint or monitor enter, null if none
+        public final String stallKind;
+        public final String stallSite;
+        public final long stallNanos;
+
+        private Window(long nanos, long allocatedBytes, String topSite, long topSiteBytes,
+                       long garbageCollections, long safepoints, long monitorEnters,
+                       String stallKind, String stallSite, long stallNanos) {
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.topSite = topSite;
+            this.topSiteBytes = topSiteBytes;
+            this.garbageCollections = garbageCollections;
+            this.safepoints = safepoints;
+            this.monitorEnters = monitorEnters;
+            this.stallKind = stallKind;
+            this.stallSite = stallSite;
+            this.stallNanos = stallNanos;
+        }
+
+        public long getAllocatedBytesPerSecond() {
+            return nanos <= 0 ? 0L : (long) (allocatedBytes * 1_000_000_000.0 / nanos);
+        }
+    }
+
+    private static class Target {
+        private final Map<String, long[]> siteBytes = new HashMap<>();
+        private volatile RemoteRecordingStream stream;
+        private volatile Window window;
+        private long windowStart = System.nanoTime();
+        private long allocatedBytes;
+        private long garbageCollections;
+        private long safepoints;
+        private long monitorEnters;
+        private String stallKind;
+        private String stallSite;
+        private long stallNanos;
+
+        private synchronized void onGarbageCollection(RecordedEvent event) {
+            garbageCollections++;
+            stall("gc", event.getString("name"), event.getDuration("longestPause"));
+        }
+
+        private synchronized void onAllocation(RecordedEvent event) {
+            long weight = event.getLong("weight");
+            allocatedBytes += weight;
+            String site = site(event.getStackTrace());
+            if (site == null) {
+                RecordedClass objectClass = event.getClass("objectClass");
+                site = objectClass == null ? "?" : objectClass.getName();
+            }
+            long[] bytes = siteBytes.get(site);
+            if (bytes == null) {
+                if (siteBytes.size() >= MAX_SITES) {
+                    return;
+                }
+                bytes = new long[1];
+                siteBytes.put(site, bytes);
+            }
+            bytes[0] += weight;
+        }
+
+        private synchronized void onSafepoint(RecordedEvent event) {
+            safepoints++;
+            stall("safepoint", null, event.getDuration());
+        }
+
+        private synchronized void onMonitorEnter(RecordedEvent event) {
+            monitorEnters++;
+            RecordedClass monitorClass = event.getClass("monitorClass");
+            String site = site(event.getStackTrace());
+            if (site == null && monitorClass != null) {
+                site = monitorClass.getName();
+            }
+            stall("monitor", site, event.getDuration());
+        }
+
+        private void stall(String kind, String site, Duration duration) {
+            long nanos = duration == null ? 0L : duration.toNanos();
+            if (nanos > stallNanos) {
+                stallKind = kind;
+                stallSite = site;
+                stallNanos = nanos;
+            }
+        }
+
+        private synchronized void roll() {
+            String topSite = null;
+            long topSiteBytes = 0;
+            for (Map.Entry<String, long[]> entry : siteBytes.entrySet()) {
+                if (entry.getValue()[0] > topSiteBytes) {
+                    topSite = entry.getKey();
+                    topSiteBytes = entry.getValue()[0];
+                }
+            }
+            long now = System.nanoTime();
+            window = new Window(now - windowStart, allocatedBytes, topSite, topSiteBytes,
+                                garbageCollections, safepoints, monitorEnters,
+                                stallKind, stallSite, stallNanos);
+            windowStart = now;
+            siteBytes.clear();
+            allocatedBytes = garbageCollections = safepoints = monitorEnters = stallNanos = 0;
+            stallKind = stallSite = null;
+        }
+
+        private void close() {
+            RemoteRecordingStream current = stream;
+            if (current != null) {
+                current.close();
+            }
+        }
+
+        /**
+         * The top java frame as class.method:line, or null without a stack
+         * trace.
+         */
+        private static String site(RecordedStackTrace stackTrace) {
+            if (stackTrace == null) {
+                return null;
+            }
+            for (RecordedFrame frame : stackTrace.getFrames()) {
+                if (!frame.isJavaFrame()) {
+                    continue;
+                }
+                RecordedMethod method = frame.getMethod();
+                return method.getType().getName() + "." + method.getName() + ":"
+                    + frame.getLineNumber();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+import com.sun.tools.attach.*;
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+/**
+ * Reads MBeanData from jvms over JMX. Every MBean is read with a single
+ * getAttributes call, and what does not change during the life of a jvm
+ * (garbage collector and heap memory pool names, the ProcessingCapacity
+ * multiplier) is looked up once per connection. A sample costs one remote
+ * call per MBean: runtime, operating system, memory, threading, class
+ * loading, the two buffer pools, one per garbage collector and one per
+ * heap memory pool.
+ */
+class JmxCollector {
+    private static final ObjectName RUNTIME = objectName(ManagementFactory.RUNTIME_MXBEAN_NAME);
+    private static final ObjectName OPERATING_SYSTEM =
+        objectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+    private static final ObjectName MEMORY = objectName(ManagementFactory.MEMORY_MXBEAN_NAME);
+    static final ObjectName THREADING = objectName(ManagementFactory.THREAD_MXBEAN_NAME);
+    private static final ObjectName CLASS_LOADING =
+        objectName(ManagementFactory.CLASS_LOADING_MXBEAN_NAME);
+    private static final ObjectName DIRECT_BUFFER_POOL =
+        objectName("java.nio:type=BufferPool,name=direct");
+    private static final ObjectName MAPPED_BUFFER_POOL =
+        objectName("java.nio:type=BufferPool,name=mapped");
+    private static final ObjectName GARBAGE_COLLECTORS =
+        objectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*");
+    private static final ObjectName MEMORY_POOLS =
+        objectName(ManagementFactory.MEMORY_POOL_MXBEAN_DOMAIN_TYPE + ",*");
+
+    private static final String[] OPERATING_SYSTEM_ATTRIBUTES = {
+        "ProcessCpuTime", "OpenFileDescriptorCount", "MaxFileDescriptorCount", "ProcessCpuLoad"
+    };
+    private static final String[] MEMORY_ATTRIBUTES = { "HeapMemoryUsage", "NonHeapMemoryUsage" };
+    private static final String[] GARBAGE_COLLECTOR_ATTRIBUTES = {
+        "CollectionCount", "CollectionTime"
+    };
+    private static final String[] MEMORY_POOL_ATTRIBUTES = { "Usage", "CollectionUsage" };
+    // with memory thresholds, memory is read every this many samples
+    // unless a threshold notification arrives
+    private static final int MEMORY_POLL_SAMPLES = 10;
+
+    private final JmxConnectionCache connections;
+    private final TargetStats stats;
+    private final Map<String, Metadata> metadatas = new ConcurrentHashMap<>();
+    private volatile GcPauseTracker pauseTracker;
+    private volatile MemoryThresholds memoryThresholds;
+    private volatile JfrStreams jfrStreams;
+
+    public JmxCollector(JmxConnectionCache connections, TargetStats stats) {
+        this.connections = connections;
+        this.stats = stats;
+    }
+
+    /**
+     * Registers pauseTracker on the garbage collectors of every new
+     * connection.
+     */
+    public void setPauseTracker(GcPauseTracker pauseTracker) {
+        this.pauseTracker = pauseTracker;
+    }
+
+    /**
+     * Sets memoryThresholds on the heap pools of every new connection, and
+     * reads memory and the pools only every MEMORY_POLL_SAMPLES samples or
+     * after a threshold notification.
+     */
+    public void setMemoryThresholds(MemoryThresholds memoryThresholds) {
+        this.memoryThresholds = memoryThresholds;
+    }
+
+    /**
+     * Starts jfrStreams on every new connection.
+     */
+    public void setJfrStreams(JfrStreams jfrStreams) {
+        this.jfrStreams = jfrStreams;
+    }
+
+    /**
+     * Returns the data of the jvm, or null if it cannot be read.
+     */
+    public MBeanData collect(VirtualMachineDescriptor vmDesc) {
+        return collect(vmDesc.id(), vmDesc.displayName(), () -> connections.get(vmDesc));
+    }
+
+    /**
+     * Returns the data of the remote jvm, or null if it cannot be read.
+     */
+    public MBeanData collect(RemoteTarget target) {
+        return collect(target.id, target.id, () -> connections.get(target));
+    }
+
+    /**
+     * Returns the data of the jvm read over the connection of connection,
+     * or null if it cannot be read.
+     */
+    private MBeanData collect(String id, String name,
+                              JmxConnectionCache.ConnectionSupplier connection) {
+        try {
+            boolean cached = connections.contains(id);
+            try {
+                return query(id, name, connection.get());
+            } catch (IOException e) {
+                if (!cached) {
+                    throw e;
+                }
+                // the cached connection went stale, reconnect once
+                connections.invalidate(id);
+                return query(id, name, connection.get());
+            }
+        } catch (Exception e) {
+            connections.invalidate(id);
+            return null;
+        }
+    }
+
+    private MBeanData query(String id, String name, MBeanServerConnection conn)
+        throws IOException {
+        long start = System.nanoTime();
+        boolean done = false;
+        try {
+            MBeanData beanData = collect(id, name, conn);
+            done = true;
+            return beanData;
+        } finally {
+            stats.record(id, TargetStats.Phase.QUERY, start, done);
+        }
+    }
+
+    /**
+     * Reads the data of a jvm from conn. Throws IOException if the
+     * connection is dead.
+     */
+    public MBeanData collect(String id, String name, MBeanServerConnection conn)
+        throws IOException {
+        Metadata metadata = getMetadata(id, conn);
+
+        MBeanData.Builder builder = new MBeanData.Builder();
+        builder.id(id);
+        builder.name(name);
+        // uptime is fetched first as it throws on a dead connection
+        builder.uptime(getUptime(conn));
+        readOperatingSystem(conn, metadata, builder);
+        MemoryThresholds thresholds = memoryThresholds;
+        MBeanData last = metadata.lastMemory;
+        boolean readMemory = thresholds == null || last == null
+            || metadata.memorySkips >= MEMORY_POLL_SAMPLES - 1 || thresholds.takeExceeded(id);
+        if (readMemory) {
+            readMemory(conn, builder);
+            metadata.memorySkips = 0;
+        } else {
+            // the same pool arrays tell MBeanData that they were not read
+            builder.heapMemory(last.heapMemory)
+                .nonHeapMemory(last.nonHeapMemory)
+                .pools(last.poolNames, last.poolUsages)
+                .poolCollectionUsages(last.poolCollectionUsages);
+            metadata.memorySkips++;
+        }
+        readGarbageCollectors(conn, metadata, builder);
+        if (readMemory) {
+            readMemoryPools(conn, metadata, builder);
+        }
+        builder
+            .threadCount((int) getLong(conn, THREADING, "ThreadCount"))
+            .nioBufferPoolDirectMemoryUsed(getLong(conn, DIRECT_BUFFER_POOL, "MemoryUsed"))
+            .nioBufferPoolMappedMemoryUsed(getLong(conn, MAPPED_BUFFER_POOL, "MemoryUsed"))
+            .loadedClassCount((int) getLong(conn, CLASS_LOADING, "LoadedClassCount"));
+        MBeanData beanData = builder.finish();
+        if (readMemory) {
+            metadata.lastMemory = beanData;
+        }
+        return beanData;
+    }
+
+    /**
+     * Forgets the metadata of all jvms not in liveIds.
+     */
+    public void retain(Set<String> liveIds) {
+        metadatas.keySet().retainAll(liveIds);
+        stats.retain(liveIds);
+        if (pauseTracker != null) {
+            pauseTracker.retain(liveIds);
+        }
+        if (memoryThresholds != null) {
+            memoryThresholds.retain(liveIds);
+        }
+        if (jfrStreams != null) {
+            jfrStreams.retain(liveIds);
+        }
+    }
+
+    private Metadata getMetadata(String id, MBeanServerConnection conn) throws IOException {
+        Metadata metadata = metadatas.get(id);
+        if (metadata == null || metadata.conn != conn) {
+            // new jvm or new connection, the jvm may have been restarted
+            metadata = new Metadata(conn);
+            if (pauseTracker != null) {
+                pauseTracker.register(id, conn, metadata.garbageCollectors);
+            }
+            if (memoryThresholds != null) {
+                memoryThresholds.register(id, conn, metadata.heapPools);
+            }
+            if (jfrStreams != null) {
+                jfrStreams.register(id, conn);
+            }
+            metadatas.put(id, metadata);
+        }
+        return metadata;
+    }
+
+    private static long getUptime(MBeanServerConnection conn) throws IOException {
+        try {
+            return (Long) conn.getAttribute(RUNTIME, "Uptime");
+        } catch (JMException e) {
+            return -1L;
+        }
+    }
+
+    private static void readOperatingSystem(MBeanServerConnection conn, Metadata metadata,
+                                            MBeanData.Builder builder) throws IOException {
+        builder
+            .cpuTime(-1L)
+            .openFileDescriptorCount(-1L)
+            .maxFileDescriptorCount(-1L)
+            .processCpuLoad(-1.0);
+        for (Attribute attr : getAttributes(conn, OPERATING_SYSTEM, OPERATING_SYSTEM_ATTRIBUTES)) {
+            Object value = attr.getValue();
+            switch (attr.getName()) {
+            case "ProcessCpuTime":
+                builder.cpuTime(((Number) value).longValue() * metadata.processCpuTimeMultiplier);
+                break;
+            case "OpenFileDescriptorCount":
+                builder.openFileDescriptorCount(((Number) value).longValue());
+                break;
+            case "MaxFileDescriptorCount":
+                builder.maxFileDescriptorCount(((Number) value).longValue());
+                break;
+            case "ProcessCpuLoad":
+                builder.processCpuLoad(((Number) value).doubleValue());
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private static void readMemory(MBeanServerConnection conn, MBeanData.Builder builder)
+        throws IOException {
+        builder
+            .heapMemory(MBeanData.NONE_MEMORY_USAGE)
+            .nonHeapMemory(MBeanData.NONE_MEMORY_USAGE);
+        for (Attribute attr : getAttributes(conn, MEMORY, MEMORY_ATTRIBUTES)) {
+            MemoryUsage usage = MemoryUsage.from((CompositeData) attr.getValue());
+            if ("HeapMemoryUsage".equals(attr.getName())) {
+                builder.heapMemory(usage);
+            } else {
+                builder.nonHeapMemory(usage);
+            }
+        }
+    }
+
+    private static void readGarbageCollectors(MBeanServerConnection conn, Metadata metadata,
+                                              MBeanData.Builder builder) throws IOException {
+        int collectors = metadata.garbageCollectors.size();
+        long[] counts = new long[collectors];
+        long[] times = new long[collectors];
+        long gcTimeTotal = 0;
+        for (int i = 0; i < collectors; i++) {
+            counts[i] = -1L;
+            times[i] = -1L;
+            for (Attribute attr : getAttributes(conn, metadata.garbageCollectors.get(i),
+                                                GARBAGE_COLLECTOR_ATTRIBUTES)) {
+                long value = ((Number) attr.getValue()).longValue();
+                if ("CollectionCount".equals(attr.getName())) {
+                    counts[i] = value;
+                } else {
+                    times[i] = value;
+                }
+            }
+            if (times[i] > 0) {
+                gcTimeTotal += times[i];
+            }
+        }
+        builder
+            .gcTime(gcTimeTotal)
+            .collectors(metadata.garbageCollectorNames, counts, times);
+    }
+
+    private static void readMemoryPools(MBeanServerConnection conn, Metadata metadata,
+                                        MBeanData.Builder builder) throws IOException {
+        MemoryUsage[] usages = new MemoryUsage[metadata.heapPools.size()];
+        MemoryUsage[] collectionUsages = new MemoryUsage[usages.length];
+        for (int i = 0; i < usages.length; i++) {
+            // left null if unknown, or if the pool is no longer valid
+            for (Attribute attr : getAttributes(conn, metadata.heapPools.get(i),
+                                                MEMORY_POOL_ATTRIBUTES)) {
+                MemoryUsage usage = MemoryUsage.from((CompositeData) attr.getValue());
+                if ("Usage".equals(attr.getName())) {
+                    usages[i] = usage;
+                } else {
+                    collectionUsages[i] = usage;
+                }
+            }
+            if (usages[i] == null) {
+                usages[i] = MBeanData.NONE_MEMORY_USAGE;
+            }
+            if (collectionUsages[i] == null) {
+                collectionUsages[i] = MBeanData.NONE_MEMORY_USAGE;
+            }
+        }
+        builder.pools(metadata.heapPoolNames, usages)
+            .poolCollectionUsages(collectionUsages);
+    }
+
+    private static long getLong(MBeanServerConnection conn, ObjectName name, String attribute)
+        throws IOException {
+        try {
+            return ((Number) conn.getAttribute(name, attribute)).longValue();
+        } catch (JMException e) {
+            return -1L;
+        }
+    }
+
+    private static List<Attribute> getAttributes(MBeanServerConnection conn, ObjectName name,
+                                                 String[] attributes) throws IOException {
+        try {
+            return conn.getAttributes(name, attributes).asList();
+        } catch (JMException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(name, e);
+        }
+    }
+
+    /**
+     * What is looked up once per connection.
+     */
+    private static class Metadata {
+        private final MBeanServerConnection conn;
+        private final List<ObjectName> garbageCollectors;
+        private final String[] garbageCollectorNames;
+        private final List<ObjectName> heapPools;
+        private final String[] heapPoolNames;
+        private final long processCpuTimeMultiplier;
+        // the last sample with memory read, and samples since
+        private volatile MBeanData lastMemory;
+        private volatile int memorySkips = 0;
+
+        private Metadata(MBeanServerConnection conn) throws IOException {
+            this.conn = conn;
+            this.garbageCollectors = new ArrayList<>(conn.queryNames(GARBAGE_COLLECTORS, null));
+            this.garbageCollectorNames = names(garbageCollectors);
+            this.heapPools = getHeapPools(conn);
+            this.heapPoolNames = names(heapPools);
+            this.processCpuTimeMultiplier = getProcessCpuTimeMultiplier(conn);
+        }
+
+        private static List<ObjectName> getHeapPools(MBeanServerConnection conn)
+            throws IOException {
+            List<ObjectName> heapPools = new ArrayList<>();
+            for (ObjectName name : conn.queryNames(MEMORY_POOLS, null)) {
+                try {
+                    if (MemoryType.HEAP.name().equals(conn.getAttribute(name, "Type"))) {
+                        heapPools.add(name);
+                    }
+                } catch (JMException e) {
+                    // skip the pool
+                }
+            }
+            return heapPools;
+        }
+
+        private static String[] names(List<ObjectName> objectNames) {
+            String[] names = new String[objectNames.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = objectNames.get(i).getKeyProperty("name");
+            }
+            return names;
+        }
+
+        private static long getProcessCpuTimeMultiplier(MBeanServerConnection conn)
+            throws IOException {
+            try {
+                MBeanInfo info = conn.getMBeanInfo(OPERATING_SYSTEM);
+                for (MBeanAttributeInfo attr : info.getAttributes()) {
+                    if ("ProcessingCapacity".equals(attr.getName())) {
+                        return ((Number) conn.getAttribute(OPERATING_SYSTEM, attr.getName()))
+                            .longValue();
+                    }
+                }
+            } catch (JMException e) {
+                // fall through
+            }
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import com.sun.tools.attach.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import javax.management.remote.*;
+
+/**
+ * Keeps the JMX connection to each jvm open across samples, so attaching,
+ * starting the management agent and the connection handshake is done once
+ * per jvm rather than once per sample. Remote jvms are connected to
+ * directly. The latency of each of these phases is recorded in a
+ * TargetStats.
+ */
+class JmxConnectionCache {
+    private static final String LOCAL_CONNECTOR_ADDRESS =
+        "com.sun.management.jmxremote.localConnectorAddress";
+
+    private final TargetStats stats;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public JmxConnectionCache(TargetStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Returns the cached connection to the jvm, connecting if there is no
+     * cached connection or if the cached connection has failed.
+     */
+    public MBeanServerConnection get(VirtualMachineDescriptor vmDesc)
+        throws IOException, AttachNotSupportedException, AgentLoadException,
+               AgentInitializationException {
+        MBeanServerConnection cached = getCached(vmDesc.id());
+        return cached != null ? cached : put(vmDesc.id(), connect(vmDesc));
+    }
+
+    /**
+     * Returns the cached connection to the remote jvm, connecting like get.
+     */
+    public MBeanServerConnection get(RemoteTarget target) throws IOException {
+        MBeanServerConnection cached = getCached(target.id);
+        return cached != null ? cached : put(target.id, connect(target.id, target.url));
+    }
+
+    public boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Closes and forgets the connection to a jvm, the next get reconnects.
+     */
+    public void invalidate(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            entry.close();
+        }
+    }
+
+    /**
+     * Evicts the connections to all jvms not in liveIds, i.e. jvms that
+     * have exited.
+     */
+    public void retain(Set<String> liveIds) {
+        for (String id : new ArrayList<>(entries.keySet())) {
+            if (!liveIds.contains(id)) {
+                invalidate(id);
+            }
+        }
+    }
+
+    public void closeAll() {
+        retain(Collections.emptySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "connections: " + size() + " cached, " + getHits() + " hits, "
+            + getMisses() + " misses";
+    }
+
+    private MBeanServerConnection getCached(String id) {
+        Entry entry = entries.get(id);
+        if (entry != null && entry.alive) {
+            hits.incrementAndGet();
+            return entry.connection;
+        }
+        misses.incrementAndGet();
+        if (entry != null) {
+            invalidate(id);
+        }
+        return null;
+    }
+
+    private MBeanServerConnection put(String id, Entry newEntry) {
+        Entry oldEntry = entries.put(id, newEntry);
+        if (oldEntry != null) {
+            // raced with another connect to the same jvm
+            oldEntry.close();
+        }
+        return newEntry.connection;
+    }
+
+    private Entry connect(VirtualMachineDescriptor vmDesc)
+        throws IOException, AttachNotSupportedException, AgentLoadException,
+               AgentInitializationException {
+        String id = vmDesc.id();
+        long start = System.nanoTime();
+        boolean done = false;
+        VirtualMachine vm;
+        try {
+            vm = VirtualMachine.attach(vmDesc);
+            done = true;
+        } finally {
+            stats.record(id, TargetStats.Phase.ATTACH, start, done);
+        }
+
+        String connectorAddress = null;
+        start = System.nanoTime();
+        done = false;
+        try {
+            connectorAddress = vm.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
+            if (connectorAddress == null) {
+                // start up JMX on the virtual machine
+                String agent = vm.getSystemProperties().getProperty("java.home") +
+                    File.separator + "lib" + File.separator +
+                    "management-agent.jar";
+                if (new File(agent).exists()) {
+                    vm.loadAgent(agent);
+                    connectorAddress = vm.getAgentProperties()
+                        .getProperty(LOCAL_CONNECTOR_ADDRESS);
+                } else {
+                    // java 9+ no longer ships management-agent.jar
+                    connectorAddress = vm.startLocalManagementAgent();
+                }
+            }
+            done = connectorAddress != null;
+        } finally {
+            vm.detach();
+            stats.record(id, TargetStats.Phase.AGENT, start, done);
+        }
+        if (connectorAddress == null) {
+            throw new IOException("No JMX connector address for " + id);
+        }
+        return connect(id, new JMXServiceURL(connectorAddress));
+    }
+
+    private Entry connect(String id, JMXServiceURL url) throws IOException {
+        long start = System.nanoTime();
+        boolean done = false;
+        try {
+            JMXConnector connector =
+                JMXConnectorFactory.connect(url);
+            try {
+                Entry entry = new Entry(connector);
+                done = true;
+                return entry;
+            } catch (IOException e) {
+                connector.close();
+                throw e;
+            }
+        } finally {
+            stats.record(id, TargetStats.Phase.CONNECT, start, done);
+        }
+    }
+
+    /**
+     * A get of the connection to one jvm, local or remote, throwing what
+     * attaching or connecting throws.
+     */
+    interface ConnectionSupplier {
+        MBeanServerConnection get() throws Exception;
+    }
+
+    private static class Entry implements NotificationListener {
+        private final JMXConnector connector;
+        private final MBeanServerConnection connection;
+        private volatile boolean alive = true;
+
+        private Entry(JMXConnector connector) throws IOException {
+            this.connector = connector;
+            this.connection = connector.getMBeanServerConnection();
+            connector.addConnectionNotificationListener(this, null, null);
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            String type = notification.getType();
+            if (JMXConnectionNotification.CLOSED.equals(type)
+                || JMXConnectionNotification.FAILED.equals(type)) {
+                alive = false;
+            }
+        }
+
+        private void close() {
+            alive = false;
+            try {
+                connector.close();
+            } catch (IOException e) {
+                // the jvm is most likely gone
+            }
+        }
+    }
+}
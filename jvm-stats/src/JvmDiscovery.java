@@ -0,0 +1,252 @@
+import com.sun.tools.attach.*;
+import com.sun.tools.attach.spi.*;
+import java.io.*;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the set of running jvms current by watching the hsperfdata
+ * directories, where every hotspot jvm creates a file named by its pid at
+ * startup and deletes it at exit, rather than listing the attach providers
+ * on every sample. Listeners are told about each jvm that appears or
+ * exits.
+ *
+ * A full rescan runs at start, when the watch overflows and every
+ * RESCAN_INTERVAL, as events can be missed: the hsperfdata directory of a
+ * user may be created and filled before it is watched, and a jvm that is
+ * killed leaves its file behind until another jvm of the user cleans up.
+ * A jvm whose process is gone is removed by the rescan, and never added
+ * from a file left behind.
+ */
+class JvmDiscovery implements Closeable {
+    private static final Duration RESCAN_INTERVAL = Duration.ofSeconds(60);
+
+    interface Listener {
+        void added(VirtualMachineDescriptor desc);
+
+        void removed(String id);
+    }
+
+    private final Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private final WatchService watcher;
+    private final AttachProvider provider;
+    private final Map<String, VirtualMachineDescriptor> vms = new ConcurrentHashMap<>();
+    private final Map<String, Path> files = new ConcurrentHashMap<>();
+    // jvms found by a watch event whose display name could not be read yet
+    private final Set<String> unnamed = ConcurrentHashMap.newKeySet();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread thread = new Thread(this::run, "jvm-stats-discovery");
+
+    public JvmDiscovery() throws IOException {
+        List<AttachProvider> providers = AttachProvider.providers();
+        if (providers.isEmpty()) {
+            throw new IOException("No attach provider");
+        }
+        this.provider = providers.get(0);
+        this.watcher = tmpDir.getFileSystem().newWatchService();
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Calls listener on the discovery thread for every jvm added or
+     * removed after start.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Watches the directories and does the first full scan.
+     */
+    public void start() throws IOException {
+        tmpDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        rescan();
+        thread.start();
+    }
+
+    /**
+     * The running jvms, unordered.
+     */
+    public List<VirtualMachineDescriptor> list() {
+        for (String id : unnamed) {
+            Path file = files.get(id);
+            String name = file == null ? null : HsPerfDataCollector.readJavaCommand(id, file);
+            if (name != null && unnamed.remove(id)) {
+                vms.replace(id, new VirtualMachineDescriptor(provider, id, name));
+            }
+        }
+        return new ArrayList<>(vms.values());
+    }
+
+    /**
+     * The hsperfdata files of the running jvms, keyed by vm id.
+     */
+    public Map<String, Path> listFiles() {
+        return new HashMap<>(files);
+    }
+
+    public Set<String> ids() {
+        return new HashSet<>(vms.keySet());
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private void run() {
+        long nextRescan = System.nanoTime() + RESCAN_INTERVAL.toNanos();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.poll(Math.max(0, nextRescan - System.nanoTime()),
+                                            TimeUnit.NANOSECONDS);
+                if (key == null) {
+                    rescan();
+                    nextRescan = System.nanoTime() + RESCAN_INTERVAL.toNanos();
+                    continue;
+                }
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                        nextRescan = System.nanoTime() + RESCAN_INTERVAL.toNanos();
+                        continue;
+                    }
+                    Path file = dir.resolve((Path) event.context());
+                    if (dir.equals(tmpDir)) {
+                        if (isUserDir(file)) {
+                            watchUserDir(file);
+                        }
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        addFile(file);
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        remove(file.getFileName().toString());
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Lists all jvms from the attach providers and all hsperfdata files,
+     * and adds and removes what the events missed. Both list the files
+     * of killed jvms, so those whose process is gone are left out.
+     */
+    private void rescan() {
+        Map<String, VirtualMachineDescriptor> descs = new HashMap<>();
+        for (VirtualMachineDescriptor desc : VirtualMachine.list()) {
+            if (isAlive(desc.id())) {
+                descs.put(desc.id(), desc);
+            }
+        }
+        Map<String, Path> perfFiles = HsPerfDataCollector.list();
+        Set<Path> userDirs = new HashSet<>();
+        for (Path file : perfFiles.values()) {
+            userDirs.add(file.getParent());
+        }
+        for (Path userDir : userDirs) {
+            // also watches directories created since the last scan
+            watchUserDir(userDir);
+        }
+        perfFiles.keySet().removeIf(id -> !isAlive(id));
+
+        for (String id : new ArrayList<>(vms.keySet())) {
+            if (!descs.containsKey(id) && !perfFiles.containsKey(id)) {
+                remove(id);
+            }
+        }
+        for (Map.Entry<String, Path> entry : perfFiles.entrySet()) {
+            files.put(entry.getKey(), entry.getValue());
+        }
+        for (VirtualMachineDescriptor desc : descs.values()) {
+            if (unnamed.remove(desc.id())) {
+                vms.put(desc.id(), desc);
+            }
+            add(desc);
+        }
+        for (Map.Entry<String, Path> entry : perfFiles.entrySet()) {
+            if (!vms.containsKey(entry.getKey())) {
+                addFile(entry.getValue());
+            }
+        }
+    }
+
+    private void watchUserDir(Path dir) {
+        try {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                         StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            // another user's directory
+            return;
+        }
+        // files created before the directory was watched
+        try (DirectoryStream<Path> vmFiles = Files.newDirectoryStream(dir)) {
+            for (Path file : vmFiles) {
+                addFile(file);
+            }
+        } catch (IOException e) {
+            // the directory is gone
+        }
+    }
+
+    private void addFile(Path file) {
+        String id = file.getFileName().toString();
+        if (!HsPerfDataCollector.isPid(id) || vms.containsKey(id) || !isAlive(id)) {
+            return;
+        }
+        files.put(id, file);
+        String name = HsPerfDataCollector.readJavaCommand(id, file);
+        if (name == null) {
+            // the jvm is still starting, named by a later list
+            unnamed.add(id);
+            name = "";
+        }
+        add(new VirtualMachineDescriptor(provider, id, name));
+    }
+
+    private void add(VirtualMachineDescriptor desc) {
+        if (vms.putIfAbsent(desc.id(), desc) == null) {
+            for (Listener listener : listeners) {
+                listener.added(desc);
+            }
+        }
+    }
+
+    private void remove(String id) {
+        files.remove(id);
+        unnamed.remove(id);
+        if (vms.remove(id) != null) {
+            for (Listener listener : listeners) {
+                listener.removed(id);
+            }
+        }
+    }
+
+    /**
+     * Whether the process of the jvm is running, false for the file of a
+     * killed jvm.
+     */
+    private static boolean isAlive(String id) {
+        try {
+            return ProcessHandle.of(Long.parseLong(id)).map(ProcessHandle::isAlive).orElse(false);
+        } catch (NumberFormatException e) {
+            // not a pid, leave it to the files
+            return true;
+        }
+    }
+
+    private boolean isUserDir(Path dir) {
+        return dir.getFileName().toString().startsWith(HsPerfDataCollector.HSPERFDATA_PREFIX)
+            && Files.isDirectory(dir);
+    }
+}
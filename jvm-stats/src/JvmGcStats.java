@@ -2,22 +2,22 @@
 import com.sun.tools.attach.*;
 import java.io.*;
 import java.lang.management.*;
-import java.time.Duration;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
-import javax.management.*;
-import javax.management.openmbean.*;
-import javax.management.remote.*;
 
 public class JvmGcStats {
-    private static final MemoryUsage NONE_MEMORY_USAGE = new MemoryUsage(0L, 0L, 0L, 0L);
     private static final MBeanData ZERO_MBEAN_DATA = 
         new MBeanData.Builder().id("")
         .name("")
         .cpuTime(0L)
         .gcTime(0L)
-        .heapMemory(NONE_MEMORY_USAGE)
-        .nonHeapMemory(NONE_MEMORY_USAGE)
+        .heapMemory(MBeanData.NONE_MEMORY_USAGE)
+        .nonHeapMemory(MBeanData.NONE_MEMORY_USAGE)
         .openFileDescriptorCount(0L)
         .maxFileDescriptorCount(0L)
         .threadCount(0)
@@ -33,6 +33,72 @@ public class JvmGcStats {
     private static final int WARN_LIVE_THREADS = 500;
     private static final int WARN_BUFFERPOOL = 1_000_000_000; // ~1G
     private static final int WARN_LOADED_CLASSES = 1_000_000;
+    private static final Duration WARN_TIME_TO_OOM = Duration.ofHours(1);
+    private static final double WARN_THROTTLED_FRACTION = 0.1;
+    private static final double WARN_CGROUP_MEM_FRACTION = 0.9;
+    private static final char TIMED_OUT_CHAR = '?';
+    private static final char UNREACHABLE_CHAR = 'X';
+    private static final char DEGRADED_MARK = '*';
+    // a jvm using this much cpu is sampled every interval with --budget
+    private static final char HOT_LOAD_CHAR = '5';
+    private static final Duration DEFAULT_FOLLOW_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration WINDOW_10S = Duration.ofSeconds(10);
+    private static final Duration WINDOW_60S = Sampler.LONGEST_WINDOW;
+    private static final Duration DEFAULT_TARGET_TIMEOUT = Duration.ofSeconds(1);
+    private static final int COLLECTOR_THREADS = 8;
+    private static final int DEFAULT_TOP_THREADS = 5;
+    // a dozen jvms recorded every minute for about 4 days
+    private static final long HISTORY_FILE_SIZE = 8L << 20;
+    private static final Duration DEFAULT_RECORD_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_HISTORY_AGE = Duration.ofHours(1);
+    // commands of the --serve socket
+    private static final char SERVE_ALL = 'a';
+    private static final char SERVE_CHARS = 'c';
+    private static final char SERVE_BREAKDOWN = 'g';
+    private static final char SERVE_TARGET_STATS = 's';
+    private static final char SERVE_JFR = 'j';
+    private static final TargetStats STATS = new TargetStats();
+    private static final JmxConnectionCache CONNECTIONS = new JmxConnectionCache(STATS);
+    private static final JmxCollector JMX = new JmxCollector(CONNECTIONS, STATS);
+    private static final ProcCollector PROC = new ProcCollector();
+    private static final HsPerfDataCollector PERF_DATA = new HsPerfDataCollector(PROC);
+    private static final HotThreads HOT_THREADS = new HotThreads();
+    private static final LeakTracker LEAKS = new LeakTracker();
+    private static final CgroupStats CGROUPS = new CgroupStats();
+    private static final ExecutorService COLLECTOR =
+        Executors.newFixedThreadPool(COLLECTOR_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "jvm-stats-collector");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // what is printed is rendered into these, by one thread at a time
+    private static final Table TABLE = new Table();
+    private static final TextBuffer TEXT = new TextBuffer(16384);
+    private static final WritableByteChannel STDOUT =
+        new FileOutputStream(FileDescriptor.out).getChannel();
+    // collections that have not finished yet, keyed by vm id
+    private static final Map<String, Future<MBeanData>> IN_FLIGHT = new ConcurrentHashMap<>();
+    private static boolean verbose = false;
+    private static boolean usePerfData = false;
+    private static Duration targetTimeout = DEFAULT_TARGET_TIMEOUT;
+    private static int topThreads = DEFAULT_TOP_THREADS;
+    // fraction of one cpu for --budget, -1 if not set
+    private static double budget = -1;
+    // set when staying resident
+    private static volatile JvmDiscovery discovery;
+    // set when staying resident with --budget
+    private static volatile Cadence cadence;
+    // fraction of the max for --thresholds, -1 if not set
+    private static double thresholdFraction = -1;
+    // set when staying resident with --thresholds
+    private static volatile MemoryThresholds memoryThresholds;
+    // --jfr
+    private static boolean streamJfr = false;
+    // jvms of --remote, collected along with the local jvms, in order
+    private static final Map<String, RemoteTarget> REMOTE_TARGETS = new LinkedHashMap<>();
+    // history file of --record, or null
+    private static Path recordPath;
+    private static Duration recordInterval = DEFAULT_RECORD_INTERVAL;
 
     public static void main(String[] args) {
         
@@ -43,38 +109,225 @@ public class JvmGcStats {
 
         Set<Character> setArgs = new HashSet<>();
         String pid = null;
+        Duration interval = DEFAULT_FOLLOW_INTERVAL;
+        Path serveSocket = null;
+        Path connectSocket = null;
+        int httpPort = -1;
+        Path historyPath = null;
+        Duration since = DEFAULT_HISTORY_AGE;
+        Duration every = null;
         for (String arg : args) {
             if ("-h".equals(arg) || "--help".equals(arg)) {
-                System.out.println("Usage: JvmGcStats [-f|-1|-c|-g] [PID]");
+                System.out.println("Usage: JvmGcStats [-1|-c|-g|-t|-S|-d|-p|-v] [--interval=SECONDS] "
+                                   + "[--timeout=SECONDS] [--top=N] [--serve=SOCKET|--connect=SOCKET] "
+                                   + "[--http=PORT] [--budget=PERCENT] [--thresholds=PERCENT] "
+                                   + "[--jfr] [--remote=TARGET,...] [--record=FILE] "
+                                   + "[--history=FILE [--since=AGE] [--every=AGE]] [PID]");
                 System.out.println("  no args: print all data");
                 System.out.println("  -1:      print gc data over 1 second (rather than lifetime)");
                 System.out.println("  -c:      print single-character summary for each jvm");
+                System.out.println("  -g:      print each garbage collector and heap memory pool of each jvm");
+                System.out.println("  -t:      print the threads of each jvm that used the most cpu");
+                System.out.println("  -S:      print the latency and errors of each phase of collecting");
+                System.out.println("           from each jvm, since start");
+                System.out.println("  --top=N  number of threads per jvm to print with -t (default "
+                                   + DEFAULT_TOP_THREADS + ")");
+                System.out.println("  -d, --follow");
+                System.out.println("           keep running and print a new sample every interval,");
+                System.out.println("           gc data is over the interval");
+                System.out.println("  --interval=SECONDS");
+                System.out.println("           sample interval of -d (default "
+                                   + DEFAULT_FOLLOW_INTERVAL.getSeconds() + ")");
+                System.out.println("  --timeout=SECONDS");
+                System.out.println("           max time to wait for the data of each jvm (default "
+                                   + DEFAULT_TARGET_TIMEOUT.getSeconds() + ")");
+                System.out.println("  --serve=SOCKET");
+                System.out.println("           keep running like -d, but rather than printing serve the");
+                System.out.println("           newest sample on the unix domain socket SOCKET");
+                System.out.println("  --http=PORT");
+                System.out.println("           keep running like --serve, serving the newest sample as");
+                System.out.println("           OpenMetrics text on http://localhost:PORT/metrics");
+                System.out.println("  --budget=PERCENT");
+                System.out.println("           with -d, --serve or --http sample jvms without a warning");
+                System.out.println("           less often, backing off up to 16 intervals, and stretch the");
+                System.out.println("           intervals while jvm-stats uses more than PERCENT of one cpu");
+                System.out.println("  --thresholds=PERCENT");
+                System.out.println("           with -d, --serve or --http set the usage and collection usage");
+                System.out.println("           thresholds of the heap pools of each jvm to PERCENT of their");
+                System.out.println("           max, and read memory only every 10 samples unless a jvm");
+                System.out.println("           reports a pool over its threshold; the thresholds are set");
+                System.out.println("           back on exit");
+                System.out.println("  --remote=TARGET,...");
+                System.out.println("           also collect from the jvms listening on JMX remote ports,");
+                System.out.println("           each TARGET is HOST:PORT or a service:jmx URL, optionally");
+                System.out.println("           followed by @SECONDS, its own timeout, and is shown in the");
+                System.out.println("           HOST column; may be given more than once");
+                System.out.println("  --jfr    with -d, --serve or --http stream gc, allocation sample,");
+                System.out.println("           safepoint and contended monitor events from each jvm with");
+                System.out.println("           the flight recorder (jdk 17+), and with -d or --connect print");
+                System.out.println("           their summary over the interval");
+                System.out.println("  --record=FILE");
+                System.out.println("           with -d, --serve or --http also record each jvm every record");
+                System.out.println("           interval into the history file FILE, of "
+                                   + humanBytes(HISTORY_FILE_SIZE) + ", overwriting the oldest");
+                System.out.println("           records when full");
+                System.out.println("  --record-interval=SECONDS");
+                System.out.println("           record interval of --record (default "
+                                   + DEFAULT_RECORD_INTERVAL.getSeconds() + ")");
+                System.out.println("  --history=FILE");
+                System.out.println("           print the records of the history file FILE like printing all");
+                System.out.println("           data with -1, gc data is since the previous record of the jvm");
+                System.out.println("  --since=AGE");
+                System.out.println("           print the records of --history of the last AGE, e.g. 90s, 10m,");
+                System.out.println("           2h or 1d (default " + DEFAULT_HISTORY_AGE.toHours() + "h)");
+                System.out.println("  --every=AGE");
+                System.out.println("           print only the last record of each jvm in each AGE of --history,");
+                System.out.println("           gc data is over the AGE");
+                System.out.println("  --connect=SOCKET");
+                System.out.println("           print the newest sample of the --serve server at SOCKET,");
+                System.out.println("           -c, -g, -S and --jfr select the output as usual");
+                System.out.println("  -p:      read the hsperfdata files of the jvms rather than attaching,");
+                System.out.println("           much cheaper but FILES and FSMEM are unknown (-1)");
+                System.out.println("  -v:      print jmx connection cache statistics to stderr");
                 System.out.println("Columns descriptions:");
                 System.out.println("  C        Single-character description");
+                System.out.println("  HOST     The --remote target of the jvm, or localhost (only with --remote)");
+                System.out.println("  PID      Process id, - for --remote targets");
                 System.out.println("  GC/CPU   The fraction the jvm have used garbage collecting");
+                System.out.println("  GC/10S   GC/CPU over the last 10 seconds (only with -d)");
+                System.out.println("  GC/60S   GC/CPU over the last 60 seconds (only with -d)");
                 System.out.println("  GC       Time used garbage collecting in ms");
                 System.out.println("  CPU      Cpu time used in ms");
+                System.out.println("  MAXP     Longest gc pause in ms in the interval (only with -d)");
+                System.out.println("  P99      99th percentile gc pause in ms in the interval (only with -d)");
+                System.out.println("  GC/S     Garbage collections per second in the interval (only with -d)");
+                System.out.println("  FREED/S  Heap bytes freed by the collections per second in the interval");
+                System.out.println("           (only with -d)");
+                System.out.println("  CAUSE    Cause of the MAXP pause (only with -d)");
                 System.out.println("  LOAD     Cpu load");
                 System.out.println("  MEM      Heap and non-heap memory used");
                 System.out.println("  MEM+     Memory allocated to the jvm by the os");
                 System.out.println("  MAX      Max allowed memory to allocate");
+                System.out.println("  OOM      Time until the old generation is full at its growth after");
+                System.out.println("           collections so far, - if not growing (only with -d)");
+                System.out.println("  THROT    Fraction of the cpu quota periods the cgroup of the jvm");
+                System.out.println("           was throttled in, - without a quota");
+                System.out.println("  THRTIME  Fraction of time the cgroup of the jvm was throttled,");
+                System.out.println("           - without a quota");
+                System.out.println("  CGMEM    Memory used by the cgroup of the jvm less inactive page cache");
+                System.out.println("  CGMAX    Memory limit of the cgroup of the jvm, - without a limit");
+                System.out.println("  ALLOC/S  Bytes allocated per second (only with -1 or -d)");
+                System.out.println("  PROMO/S  Bytes promoted to the old generation per second (only with -1 or -d)");
+                System.out.println("  RSS      Resident set size, only known for " + DEGRADED_MARK + " rows");
                 System.out.println("  FILES    Number of open file descriptors");
                 System.out.println("  THREADS  Number of live threads");
                 System.out.println("  FSMEM    Size of direct+mapped buffer pools");
                 System.out.println("  CLASSES  Number of loaded classes");
+                System.out.println("  IO       Bytes read and written, only known for " + DEGRADED_MARK + " rows");
                 System.out.println("  UPTIME   Time the jvm have been running");
                 System.out.println("  NAME     The arguments used to start the jvm");
+                System.out.println("Columns of -t:");
+                System.out.println("  TID      Thread id");
+                System.out.println("  CPU%     Percent of one cpu the thread used (only with -1 or -d)");
+                System.out.println("  CPU      Cpu time the thread used in ms");
+                System.out.println("  STATE    Thread state");
+                System.out.println("  NAME     Thread name");
+                System.out.println("Columns of -S:");
+                System.out.println("  PHASE    attach, agent (start the management agent), connect (jmx),");
+                System.out.println("           query (read the mbeans), proc, perfdata, or collect (all");
+                System.out.println("           phases of a sample)");
+                System.out.println("  COUNT    Number of times the phase ran");
+                System.out.println("  ERRORS   Number of times it failed, or for collect timed out");
+                System.out.println("  MEAN     Mean latency in ms");
+                System.out.println("  P50      Median latency in ms");
+                System.out.println("  P99      99th percentile latency in ms");
+                System.out.println("  MAX      Max latency in ms");
+                System.out.println("Columns of --jfr:");
+                System.out.println("  ALLOC/S  Bytes allocated per second, estimated from the samples");
+                System.out.println("  TOP%     Percent of ALLOC/S allocated at TOPALLOC");
+                System.out.println("  TOPALLOC The method that allocated the most, class.method:line");
+                System.out.println("  GCS      Garbage collections");
+                System.out.println("  SAFEP    Safepoints over " + JfrStreams.STALL_THRESHOLD.toMillis() + " ms");
+                System.out.println("  MONITOR  Contended monitor enters over "
+                                   + JfrStreams.STALL_THRESHOLD.toMillis() + " ms");
+                System.out.println("  STALL    Longest gc pause, safepoint or monitor enter in ms");
+                System.out.println("  KIND     gc, safepoint or monitor");
+                System.out.println("  WHERE    The collector, or the method that waited for the monitor");
                 System.out.println("Single-character descriptions (order of priority):");
                 System.out.println("  G        GC usage > " + WARN_GC_PERCENTAGE);
-                System.out.println("  M        MEM+ / MAX > " + WARN_MEM_PERCENTAGE);
+                System.out.println("  M        MEM+ / MAX > " + WARN_MEM_PERCENTAGE
+                                   + ", or a pool over --thresholds in the last minute");
+                System.out.println("  L        OOM < " + WARN_TIME_TO_OOM.toMinutes()
+                                   + " minutes (only with -d)");
+                System.out.println("  Q        THRTIME > " + WARN_THROTTLED_FRACTION + ", or CGMEM / CGMAX > "
+                                   + WARN_CGROUP_MEM_FRACTION);
                 System.out.println("  F        File descriptors > " + WARN_FILE_DESCRIPTORS);
                 System.out.println("  T        Live threads > " + WARN_LIVE_THREADS);
                 System.out.println("  B        Buffer pool > " + humanBytes(WARN_BUFFERPOOL));
                 System.out.println("  C        Loaded classes > " + WARN_LOADED_CLASSES);
                 System.out.println("  0-9      CPU usage (0=0%, 5=50%, 9=100%)");
+                System.out.println("  " + TIMED_OUT_CHAR + "        No data within the timeout");
+                System.out.println("  " + UNREACHABLE_CHAR + "        Remote jvm could not be connected to or read");
+                System.out.println("  " + DEGRADED_MARK + "        (in the table) Could not attach, data is from /proc,");
+                System.out.println("           there is no gc, memory or class data");
                 System.out.println();
                 System.exit(1);
             }
+            else if ("--follow".equals(arg)) {
+                setArgs.add('d');
+            }
+            else if (arg.startsWith("--interval=")) {
+                interval = parseSeconds(arg.substring("--interval=".length()));
+            }
+            else if (arg.startsWith("--serve=")) {
+                serveSocket = Paths.get(arg.substring("--serve=".length()));
+            }
+            else if (arg.startsWith("--http=")) {
+                httpPort = parsePort(arg.substring("--http=".length()));
+            }
+            else if (arg.startsWith("--connect=")) {
+                connectSocket = Paths.get(arg.substring("--connect=".length()));
+            }
+            else if (arg.startsWith("--top=")) {
+                topThreads = parseCount(arg.substring("--top=".length()));
+            }
+            else if (arg.startsWith("--budget=")) {
+                budget = parsePercent(arg.substring("--budget=".length())) / 100;
+            }
+            else if (arg.startsWith("--thresholds=")) {
+                thresholdFraction = parsePercent(arg.substring("--thresholds=".length())) / 100;
+            }
+            else if ("--jfr".equals(arg)) {
+                streamJfr = true;
+            }
+            else if (arg.startsWith("--remote=")) {
+                for (String target : arg.substring("--remote=".length()).split(",")) {
+                    try {
+                        addRemote(RemoteTarget.parse(target));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                        System.exit(1);
+                    }
+                }
+            }
+            else if (arg.startsWith("--record=")) {
+                recordPath = Paths.get(arg.substring("--record=".length()));
+            }
+            else if (arg.startsWith("--record-interval=")) {
+                recordInterval = parseSeconds(arg.substring("--record-interval=".length()));
+            }
+            else if (arg.startsWith("--history=")) {
+                historyPath = Paths.get(arg.substring("--history=".length()));
+            }
+            else if (arg.startsWith("--since=")) {
+                since = parseAge(arg.substring("--since=".length()));
+            }
+            else if (arg.startsWith("--every=")) {
+                every = parseAge(arg.substring("--every=".length()));
+            }
+            else if (arg.startsWith("--timeout=")) {
+                targetTimeout = parseSeconds(arg.substring("--timeout=".length()));
+            }
             else if (arg.startsWith("-")) {
                 for (int i = 1; i < arg.length(); i++) {
                     setArgs.add(arg.charAt(i));
@@ -84,30 +337,580 @@ public class JvmGcStats {
                 pid = arg;
             }
         }
-        if (setArgs.contains('c')) {
+        verbose = setArgs.contains('v');
+        usePerfData = setArgs.contains('p');
+        if (historyPath != null) {
+            printHistory(historyPath, pid, since, every);
+        } else if (connectSocket != null) {
+            query(connectSocket, setArgs.contains('c') ? SERVE_CHARS
+                  : setArgs.contains('g') ? SERVE_BREAKDOWN
+                  : setArgs.contains('S') ? SERVE_TARGET_STATS
+                  : streamJfr ? SERVE_JFR : SERVE_ALL);
+        } else if (serveSocket != null || httpPort >= 0) {
+            serve(pid, serveSocket, httpPort, interval);
+        } else if (setArgs.contains('t')) {
+            printHotThreads(pid, setArgs.contains('1'), setArgs.contains('d'), interval);
+        } else if (setArgs.contains('d')) {
+            follow(pid, setArgs.contains('c'), setArgs.contains('g'), setArgs.contains('S'),
+                   interval);
+        } else if (setArgs.contains('S')) {
+            printTargetStats(pid);
+        } else if (setArgs.contains('c')) {
             printChars(pid, setArgs.contains('1'));
+        } else if (setArgs.contains('g')) {
+            printBreakdown(pid, setArgs.contains('1'));
         } else {
             printAll(pid, setArgs.contains('1'));
         }
     }
 
-    private static List<MBeanData> getBeans(String pid) {
+    private static Duration parseSeconds(String seconds) {
+        try {
+            Duration interval = Duration.ofMillis(Math.round(Double.parseDouble(seconds) * 1000));
+            if (!interval.isNegative() && !interval.isZero()) {
+                return interval;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        System.err.println("Invalid number of seconds: " + seconds);
+        System.exit(1);
+        return null;
+    }
+
+    /**
+     * Parses seconds with an optional unit: s, m, h or d.
+     */
+    private static Duration parseAge(String age) {
+        String units = "smhd";
+        long[] unitSeconds = { 1, 60, 3600, 86400 };
+        int unit = age.isEmpty() ? -1 : units.indexOf(age.charAt(age.length() - 1));
+        if (unit < 0) {
+            return parseSeconds(age);
+        }
+        try {
+            double n = Double.parseDouble(age.substring(0, age.length() - 1));
+            if (n > 0) {
+                return Duration.ofMillis(Math.round(n * unitSeconds[unit] * 1000));
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        System.err.println("Invalid age: " + age);
+        System.exit(1);
+        return null;
+    }
+
+    private static int parsePort(String port) {
+        try {
+            int n = Integer.parseInt(port);
+            if (n >= 0 && n <= 0xffff) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        System.err.println("Invalid port: " + port);
+        System.exit(1);
+        return 0;
+    }
+
+    private static double parsePercent(String percent) {
+        try {
+            double n = Double.parseDouble(percent);
+            if (n > 0 && n <= 100) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        System.err.println("Invalid percent: " + percent);
+        System.exit(1);
+        return 0;
+    }
+
+    private static int parseCount(String count) {
+        try {
+            int n = Integer.parseInt(count);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        System.err.println("Invalid count: " + count);
+        System.exit(1);
+        return 0;
+    }
+
+    /**
+     * Stay resident and print a sample every interval until stdout is
+     * closed. Each sample is compared to the previous one, so gc data is
+     * over the interval without the startup cost of a new jvm per sample.
+     */
+    private static void follow(String pid, boolean chars, boolean breakdown, boolean targetStats,
+                               Duration interval) {
+        startDiscovery();
+        startCadence();
+        startThresholds();
+        Sampler sampler = new Sampler(() -> getBeans(pid), interval);
+        sampler.setVerbose(verbose);
+        startRecording(sampler);
+        GcPauseTracker pauses = usePerfData ? null : new GcPauseTracker();
+        JMX.setPauseTracker(pauses);
+        JfrStreams jfr = startJfr();
+        CountDownLatch closed = new CountDownLatch(1);
+        sampler.addListener(snapshot -> {
+                if (pauses != null) {
+                    pauses.roll();
+                }
+                if (jfr != null) {
+                    jfr.roll();
+                }
+                TextBuffer text;
+                if (chars) {
+                    text = renderChars(snapshot.beans, snapshot.previous);
+                } else if (breakdown) {
+                    text = renderBreakdown(snapshot.beans, snapshot.previous, true);
+                } else if (targetStats) {
+                    text = renderTargetStats();
+                } else if (jfr != null) {
+                    text = renderJfr(snapshot.beans, jfr);
+                } else {
+                    text = renderAll(snapshot.beans, snapshot.previous, true, sampler, pauses);
+                }
+                if (!print(text)) {
+                    closed.countDown();
+                }
+            });
+        sampler.start();
+        try {
+            closed.await();
+        } catch (InterruptedException e) {
+            // exit
+        }
+        sampler.stop();
+    }
+
+    /**
+     * Samples like follow, but rather than printing each sample renders it
+     * for every command of the socket and for the http endpoint, either
+     * may be off (null, -1). The sampler does not depend on the clients,
+     * they only ever read the newest rendered sample.
+     */
+    private static void serve(String pid, Path socket, int httpPort, Duration interval) {
+        SnapshotServer server = null;
+        MetricsServer metrics = null;
+        try {
+            if (socket != null) {
+                server = new SnapshotServer(socket);
+                Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+            }
+            if (httpPort >= 0) {
+                metrics = new MetricsServer(httpPort);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not listen: " + e);
+            System.exit(1);
+            return;
+        }
+        if (verbose && metrics != null) {
+            System.err.println("metrics on http://localhost:" + metrics.getPort() + "/metrics");
+        }
+
+        startDiscovery();
+        startCadence();
+        startThresholds();
+        Sampler sampler = new Sampler(() -> getBeans(pid), interval);
+        sampler.setVerbose(verbose);
+        startRecording(sampler);
+        GcPauseTracker pauses = usePerfData ? null : new GcPauseTracker();
+        JMX.setPauseTracker(pauses);
+        JfrStreams jfr = startJfr();
+        SnapshotServer snapshots = server;
+        MetricsServer openMetrics = metrics;
+        sampler.addListener(snapshot -> {
+                if (pauses != null) {
+                    pauses.roll();
+                }
+                if (jfr != null) {
+                    jfr.roll();
+                }
+                if (snapshots != null) {
+                    Map<Character, byte[]> replies = new HashMap<>();
+                    replies.put(SERVE_ALL, renderAll(snapshot.beans, snapshot.previous, true,
+                                                     sampler, pauses).toByteArray());
+                    replies.put(SERVE_CHARS,
+                                renderChars(snapshot.beans, snapshot.previous).toByteArray());
+                    replies.put(SERVE_BREAKDOWN, renderBreakdown(snapshot.beans, snapshot.previous,
+                                                                 true).toByteArray());
+                    replies.put(SERVE_TARGET_STATS, renderTargetStats().toByteArray());
+                    if (jfr != null) {
+                        replies.put(SERVE_JFR, renderJfr(snapshot.beans, jfr).toByteArray());
+                    }
+                    snapshots.publish(replies);
+                }
+                if (openMetrics != null) {
+                    openMetrics.publish(snapshot.beans, snapshot.previous, STATS);
+                }
+            });
+        sampler.start();
+        if (server != null) {
+            server.run();
+        } else {
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }
+        sampler.stop();
+        if (metrics != null) {
+            metrics.close();
+        }
+    }
+
+    private static void query(Path socket, char command) {
+        try {
+            SnapshotServer.query(socket, command, System.out);
+        } catch (IOException e) {
+            System.err.println("Could not connect to " + socket + ": " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Watches for jvms starting and exiting from now on, rather than
+     * listing all jvms on every sample. Without a WatchService all jvms are
+     * still listed every sample.
+     */
+    private static void startDiscovery() {
+        try {
+            JvmDiscovery newDiscovery = new JvmDiscovery();
+            newDiscovery.addListener(new JvmDiscovery.Listener() {
+                    @Override
+                    public void added(VirtualMachineDescriptor desc) {
+                        // connected to by the next sample
+                    }
+
+                    @Override
+                    public void removed(String id) {
+                        CONNECTIONS.invalidate(id);
+                        retain(newDiscovery.ids());
+                    }
+                });
+            newDiscovery.start();
+            discovery = newDiscovery;
+        } catch (IOException e) {
+            if (verbose) {
+                System.err.println("Not watching for jvms: " + e);
+            }
+        }
+    }
+
+    /**
+     * Appends every sample to the history file of --record, if set.
+     */
+    private static void startRecording(Sampler sampler) {
+        if (recordPath == null) {
+            return;
+        }
+        HistoryFile history;
+        try {
+            history = HistoryFile.openForWriting(recordPath, HISTORY_FILE_SIZE,
+                                                 recordInterval.toMillis());
+        } catch (IOException e) {
+            System.err.println("Could not record to " + recordPath + ": " + e);
+            System.exit(1);
+            return;
+        }
+        sampler.addListener(snapshot -> history.append(snapshot.beans, System.currentTimeMillis()));
+    }
+
+    /**
+     * Sets the memory thresholds of --thresholds on every jvm connected to
+     * from now on, and sets the original ones back on exit.
+     */
+    private static void startThresholds() {
+        if (thresholdFraction <= 0 || usePerfData) {
+            return;
+        }
+        MemoryThresholds thresholds = new MemoryThresholds(thresholdFraction);
+        memoryThresholds = thresholds;
+        JMX.setMemoryThresholds(thresholds);
+        Runtime.getRuntime().addShutdownHook(new Thread(thresholds::restoreAll));
+    }
+
+    /**
+     * Streams the flight recorder events of --jfr from every jvm connected
+     * to from now on, or returns null if not set. The recordings in the
+     * jvms are closed on exit.
+     */
+    private static JfrStreams startJfr() {
+        if (!streamJfr || usePerfData) {
+            return null;
+        }
+        JfrStreams jfr = new JfrStreams();
+        JMX.setJfrStreams(jfr);
+        Runtime.getRuntime().addShutdownHook(new Thread(jfr::closeAll));
+        return jfr;
+    }
+
+    private static void startCadence() {
+        if (budget > 0) {
+            cadence = new Cadence(budget);
+        }
+    }
+
+    /**
+     * Collects remote with the local jvms from now on, like --remote.
+     */
+    static void addRemote(RemoteTarget remote) {
+        REMOTE_TARGETS.put(remote.id, remote);
+    }
+
+    /**
+     * Forgets the connections and state of all jvms not in liveIds.
+     */
+    private static void retain(Set<String> liveLocalIds) {
+        Set<String> liveIds = new HashSet<>(liveLocalIds);
+        liveIds.addAll(REMOTE_TARGETS.keySet());
+        CONNECTIONS.retain(liveIds);
+        JMX.retain(liveIds);
+        PROC.retain(liveIds);
+        PERF_DATA.retain(liveIds);
+        IN_FLIGHT.keySet().retainAll(liveIds);
+        LEAKS.retain(liveIds);
+        CGROUPS.retain(liveIds);
+        Cadence currentCadence = cadence;
+        if (currentCadence != null) {
+            currentCadence.retain(liveIds);
+        }
+    }
+
+    private static Map<String, MBeanData> toMap(List<MBeanData> beans) {
+        Map<String, MBeanData> map = new HashMap<>();
+        for (MBeanData bean : beans) {
+            map.put(bean.id, bean);
+        }
+        return map;
+    }
+
+    /**
+     * Collects the data of all jvms concurrently, waiting at most
+     * targetTimeout. A jvm that does not answer in time is returned as
+     * timed out, and is not collected again until its pending collection
+     * finishes. With a cadence, a jvm that is not due keeps its last
+     * sample. The result is ordered by vm id, followed by the --remote
+     * targets, which are collected over JMX even with -p, each waited for
+     * at most its own timeout, and returned as unreachable if they cannot
+     * be connected to or read.
+     */
+    static List<MBeanData> getBeans(String pid) {
+        Cadence currentCadence = cadence;
+        if (currentCadence != null) {
+            currentCadence.tick();
+        }
+        // started first so they are collected while the local jvms are
+        long remoteStart = System.nanoTime();
+        List<RemoteTarget> remotes = new ArrayList<>();
+        List<Future<MBeanData>> remoteFutures = new ArrayList<>();
+        for (RemoteTarget remote : REMOTE_TARGETS.values()) {
+            if (pid == null || pid.equals(remote.id)) {
+                remotes.add(remote);
+                remoteFutures.add(submit(remote.id, currentCadence, () -> collect(remote)));
+            }
+        }
+        List<MBeanData> beans = usePerfData ? getPerfDataBeans(pid, currentCadence)
+            : getJmxBeans(pid, currentCadence);
+        for (int i = 0; i < remotes.size(); i++) {
+            RemoteTarget remote = remotes.get(i);
+            Duration timeout = remote.timeout == null ? targetTimeout : remote.timeout;
+            MBeanData beanData = await(remote.id, remote.id, remoteFutures.get(i),
+                                       remoteStart + timeout.toNanos());
+            beans.add(beanData == ZERO_MBEAN_DATA ? MBeanData.unreachable(remote.id, remote.id)
+                      : beanData);
+        }
+        for (MBeanData bean : beans) {
+            LEAKS.update(bean);
+            if (bean != ZERO_MBEAN_DATA && !REMOTE_TARGETS.containsKey(bean.id)) {
+                CGROUPS.update(bean.id);
+            }
+        }
+        if (currentCadence != null) {
+            for (MBeanData bean : beans) {
+                if (bean != ZERO_MBEAN_DATA && bean.hasData()) {
+                    currentCadence.sampled(bean, isHot(bean, currentCadence.getLast(bean.id)));
+                }
+            }
+            if (verbose) {
+                System.err.println(currentCadence);
+            }
+        }
+        return beans;
+    }
+
+    /**
+     * Whether the jvm trips a warning or is busy.
+     */
+    private static boolean isHot(MBeanData bean, MBeanData oldBean) {
+        char c = getChar(bean, oldBean);
+        return !Character.isDigit(c) || c >= HOT_LOAD_CHAR;
+    }
+
+    private static List<MBeanData> getJmxBeans(String pid, Cadence cadence) {
         String runningJvmId = getRunningJvmId();
-        List<MBeanData> beans = new ArrayList<>();
-        for (VirtualMachineDescriptor desc : VirtualMachine.list()) {
+        List<VirtualMachineDescriptor> descs;
+        if (discovery != null) {
+            // exited jvms are forgotten by the discovery listener
+            descs = discovery.list();
+        } else {
+            descs = new ArrayList<>(VirtualMachine.list());
+            Set<String> liveIds = new HashSet<>();
+            for (VirtualMachineDescriptor desc : descs) {
+                liveIds.add(desc.id());
+            }
+            retain(liveIds);
+        }
+        descs.sort(Comparator.comparing((VirtualMachineDescriptor desc) -> desc.id().length())
+                   .thenComparing(VirtualMachineDescriptor::id));
+
+        List<VirtualMachineDescriptor> targets = new ArrayList<>();
+        List<Future<MBeanData>> futures = new ArrayList<>();
+        for (VirtualMachineDescriptor desc : descs) {
             if (desc.id().equals(runningJvmId)) {
                 // do not include the running jvm
                 continue;
             }
             if (pid == null || pid.equals(desc.id())) {
-                try {
-                    MBeanData beanData = getMBeanData(desc);
-                    if (beanData != null) {
-                        beans.add(beanData);
-                    } else {
-                        beans.add(ZERO_MBEAN_DATA);
-                    }
-                } catch (Exception e) {
+                targets.add(desc);
+                futures.add(submit(desc.id(), cadence, () -> collect(desc)));
+            }
+        }
+
+        long deadline = System.nanoTime() + targetTimeout.toNanos();
+        List<MBeanData> beans = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            VirtualMachineDescriptor desc = targets.get(i);
+            beans.add(await(desc.id(), desc.displayName(), futures.get(i), deadline));
+        }
+        if (verbose) {
+            System.err.println(CONNECTIONS);
+        }
+        return beans;
+    }
+
+    /**
+     * Starts collecting the jvm on the collector threads, unless its
+     * previous collection is still pending or the cadence skips it.
+     */
+    private static Future<MBeanData> submit(String id, Cadence cadence,
+                                            Callable<MBeanData> collect) {
+        MBeanData skipped = cadence == null ? null : cadence.getSkipped(id);
+        if (skipped != null) {
+            return CompletableFuture.completedFuture(skipped);
+        }
+        Future<MBeanData> future = IN_FLIGHT.get(id);
+        if (future == null || future.isDone()) {
+            future = COLLECTOR.submit(collect);
+            IN_FLIGHT.put(id, future);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for a collection until deadline, from System.nanoTime, and
+     * returns it as timed out if it has not finished.
+     */
+    private static MBeanData await(String id, String name, Future<MBeanData> future,
+                                   long deadline) {
+        try {
+            MBeanData beanData = future.get(Math.max(0, deadline - System.nanoTime()),
+                                            TimeUnit.NANOSECONDS);
+            IN_FLIGHT.remove(id, future);
+            return beanData != null ? beanData : ZERO_MBEAN_DATA;
+        } catch (TimeoutException e) {
+            STATS.failed(id, TargetStats.Phase.COLLECT);
+            return MBeanData.timedOut(id, name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ZERO_MBEAN_DATA;
+        } catch (ExecutionException e) {
+            IN_FLIGHT.remove(id, future);
+            return ZERO_MBEAN_DATA;
+        }
+    }
+
+    /**
+     * Reads the data of the jvm over JMX, falling back to the degraded data
+     * in /proc if it cannot be attached to.
+     */
+    private static MBeanData collect(VirtualMachineDescriptor desc) {
+        long start = System.nanoTime();
+        MBeanData beanData = JMX.collect(desc);
+        if (beanData == null) {
+            beanData = collectProc(desc.id(), desc.displayName());
+        }
+        STATS.record(desc.id(), TargetStats.Phase.COLLECT, start, beanData != null);
+        return beanData;
+    }
+
+    /**
+     * Reads the data of the remote jvm over JMX, there is no fallback.
+     */
+    private static MBeanData collect(RemoteTarget remote) {
+        long start = System.nanoTime();
+        MBeanData beanData = JMX.collect(remote);
+        STATS.record(remote.id, TargetStats.Phase.COLLECT, start, beanData != null);
+        return beanData;
+    }
+
+    private static MBeanData collectProc(String id, String name) {
+        long start = System.nanoTime();
+        MBeanData beanData = PROC.collect(id, name);
+        STATS.record(id, TargetStats.Phase.PROC, start, beanData != null);
+        return beanData;
+    }
+
+    /**
+     * Reads the data of all jvms from their hsperfdata files. This is fast
+     * enough to not need the collector threads. The result is ordered by vm
+     * id.
+     */
+    private static List<MBeanData> getPerfDataBeans(String pid, Cadence cadence) {
+        String runningJvmId = getRunningJvmId();
+        Map<String, Path> files;
+        if (discovery != null) {
+            files = discovery.listFiles();
+        } else {
+            files = HsPerfDataCollector.list();
+            retain(files.keySet());
+        }
+        List<String> ids = new ArrayList<>(files.keySet());
+        ids.sort(Comparator.comparing(String::length).thenComparing(Comparator.naturalOrder()));
+
+        List<MBeanData> beans = new ArrayList<>();
+        for (String id : ids) {
+            if (id.equals(runningJvmId)) {
+                // do not include the running jvm
+                continue;
+            }
+            if (pid == null || pid.equals(id)) {
+                MBeanData skipped = cadence == null ? null : cadence.getSkipped(id);
+                if (skipped != null) {
+                    beans.add(skipped);
+                    continue;
+                }
+                long start = System.nanoTime();
+                MBeanData beanData = PERF_DATA.collect(id, files.get(id));
+                STATS.record(id, TargetStats.Phase.PERF_DATA, start, beanData != null);
+                if (beanData == null) {
+                    beanData = collectProc(id, null);
+                }
+                STATS.record(id, TargetStats.Phase.COLLECT, start, beanData != null);
+                if (beanData != null) {
+                    beans.add(beanData);
+                } else {
                     beans.add(ZERO_MBEAN_DATA);
                 }
             }
@@ -118,29 +921,41 @@ public class JvmGcStats {
     private static void printChars(String pid, boolean oneSecond) {
         Map<String, MBeanData> oldBeans = new HashMap<>();
         if (oneSecond) {
-            for (MBeanData bean : getBeans(pid)) {
-                oldBeans.put(bean.id, bean);
-            }
+            oldBeans = toMap(getBeans(pid));
             try {
                 Thread.sleep(1000);
             } catch (InterruptedException e) {
                 // empty
             }
         }
+        print(renderChars(getBeans(pid), oldBeans));
+    }
 
-        List<Character> chars = new ArrayList<>();
-
-        for (MBeanData beanData : getBeans(pid)) {
-            chars.add(getChar(beanData, oldBeans.get(beanData.id)));
+    /**
+     * Renders a character per jvm into TEXT.
+     */
+    static TextBuffer renderChars(List<MBeanData> beans, Map<String, MBeanData> oldBeans) {
+        TEXT.clear();
+        for (int i = 0; i < beans.size(); i++) {
+            MBeanData beanData = beans.get(i);
+            if (REMOTE_TARGETS.containsKey(beanData.id)) {
+                // labelled, after the local jvms
+                TEXT.append(' ').append(beanData.id).append('=');
+            }
+            TEXT.append(getChar(beanData, oldBeans.get(beanData.id)));
         }
+        TEXT.append('\n');
+        return TEXT;
+    }
 
-        for (Character c : chars) {
-            System.out.print(c);
+    static char getChar(MBeanData bean, MBeanData oldBean) {
+        if (bean.status == MBeanData.Status.TIMED_OUT) {
+            return TIMED_OUT_CHAR;
+        }
+        if (bean.status == MBeanData.Status.UNREACHABLE) {
+            return UNREACHABLE_CHAR;
         }
-        System.out.println();
-    }
 
-    private static char getChar(MBeanData bean, MBeanData oldBean) {
         if (oldBean != null) {
             if (bean.getGcFraction(oldBean) > WARN_GC_PERCENTAGE) {
                 return 'G';
@@ -151,6 +966,22 @@ public class JvmGcStats {
             / bean.heapMemory.getMax() > WARN_MEM_PERCENTAGE) {
             return 'M';
         }
+        MemoryThresholds thresholds = memoryThresholds;
+        if (thresholds != null && thresholds.isAlerting(bean.id)) {
+            return 'M';
+        }
+
+        long secondsToOom = LEAKS.getSecondsToOom(bean.id);
+        if (secondsToOom >= 0 && secondsToOom < WARN_TIME_TO_OOM.getSeconds()) {
+            return 'L';
+        }
+
+        long cgroupMax = CGROUPS.getMemoryMax(bean.id);
+        if (CGROUPS.getThrottledTimeFraction(bean.id) > WARN_THROTTLED_FRACTION
+            || cgroupMax > 0
+            && (double) CGROUPS.getMemory(bean.id) / cgroupMax > WARN_CGROUP_MEM_FRACTION) {
+            return 'Q';
+        }
         
         if (bean.openFileDescriptorCount > WARN_FILE_DESCRIPTORS) {
             return 'F';
@@ -181,275 +1012,486 @@ public class JvmGcStats {
     private static void printAll(String pid, boolean oneSecond) {
         Map<String, MBeanData> oldBeans = new HashMap<>();
         if (oneSecond) {
-            for (MBeanData bean : getBeans(pid)) {
-                oldBeans.put(bean.id, bean);
-            }
+            oldBeans = toMap(getBeans(pid));
             try {
                 Thread.sleep(1000);
             } catch (InterruptedException e) {
                 // empty
             }
         }
+        print(renderAll(getBeans(pid), oldBeans, oneSecond, null, null));
+    }
 
-        List<List<String>> rows = new ArrayList<>();
+    /**
+     * Renders the table of all data into TEXT.
+     *
+     * @param sampler if not null, adds gc columns over the windows of its
+     *                history
+     * @param pauses if not null, adds columns of the collections in its
+     *               last window
+     */
+    static TextBuffer renderAll(List<MBeanData> beans, Map<String, MBeanData> oldBeans,
+                                boolean oneSecond, Sampler sampler, GcPauseTracker pauses) {
+        TABLE.reset();
+        addAllHeader(sampler != null, pauses != null, true);
+        TABLE.endRow();
+        for (int i = 0; i < beans.size(); i++) {
+            MBeanData beanData = beans.get(i);
+            addAllRow(beanData, oldBeans.get(beanData.id), oneSecond, sampler, pauses, CGROUPS);
+            TABLE.endRow();
+        }
 
-        for (MBeanData beanData : getBeans(pid)) {
-            List<String> row = new ArrayList<>();
+        TEXT.clear();
+        TABLE.render(TEXT);
+        return TEXT;
+    }
 
-            row.add(""+getChar(beanData, oldBeans.get(beanData.id)));
+    private static void addAllHeader(boolean windows, boolean pauses, boolean cgroups) {
+        TABLE.add("C");
+        if (!REMOTE_TARGETS.isEmpty()) {
+            TABLE.add("HOST");
+        }
+        TABLE.add("PID").add("GC/CPU");
+        if (windows) {
+            TABLE.add("GC/10S").add("GC/60S");
+        }
+        TABLE.add("GC").add("CPU");
+        if (pauses) {
+            TABLE.add("MAXP").add("P99").add("GC/S").add("FREED/S").add("CAUSE");
+        }
+        TABLE.add("LOAD");
+        if (cgroups) {
+            TABLE.add("THROT").add("THRTIME");
+        }
+        TABLE.add("MEM").add("MEM+").add("MAX");
+        if (cgroups) {
+            TABLE.add("CGMEM").add("CGMAX");
+        }
+        if (windows) {
+            TABLE.add("OOM");
+        }
+        TABLE.add("ALLOC/S").add("PROMO/S")
+            .add("RSS").add("FILES").add("THREADS").add("FSMEM").add("CLASSES").add("IO")
+            .add("UPTIME").add("NAME");
+    }
+
+    /**
+     * Adds the columns of printAll for beanData, the windows of sampler,
+     * the pauses and the cgroups if not null.
+     */
+    private static void addAllRow(MBeanData beanData, MBeanData oldBean, boolean oneSecond,
+                                  Sampler sampler, GcPauseTracker pauses, CgroupStats cgroups) {
+        TABLE.cell().append(getChar(beanData, oldBean));
+        if (beanData.status == MBeanData.Status.DEGRADED) {
+            TABLE.cell().append(DEGRADED_MARK);
+        }
+        TABLE.endCell();
 
-            row.add(beanData.id);
-            if (oneSecond) {
-                // value changes in last second
-                if (oldBeans.containsKey(beanData.id)) {
-                    MBeanData old = oldBeans.get(beanData.id);
-                    row.add(format(beanData.getGcFraction(old)));
-                    row.add("" + (beanData.gcTime - old.gcTime));
-                    row.add("" + (beanData.getCpuTimeMs() - old.getCpuTimeMs()));
+        if (REMOTE_TARGETS.isEmpty()) {
+            TABLE.add(beanData.id);
+        } else if (REMOTE_TARGETS.containsKey(beanData.id)) {
+            TABLE.add(beanData.id).add('-');
+        } else {
+            TABLE.add("localhost").add(beanData.id);
+        }
+        if (oneSecond) {
+            // value changes in last second (or interval when following)
+            MBeanData old = oldBean == null ? beanData : oldBean;
+            TABLE.addFixed(beanData.getGcFraction(old));
+            if (sampler != null) {
+                SampleHistory history = sampler.getHistory(beanData.id);
+                if (history == null) {
+                    TABLE.add('-').add('-');
                 } else {
-                    row.add(format(0.00));
-                    row.add("0");
-                    row.add("0");
+                    TABLE.addFixed(history.getGcFraction(WINDOW_10S.toNanos()))
+                        .addFixed(history.getGcFraction(WINDOW_60S.toNanos()));
                 }
+            }
+            TABLE.add(beanData.gcTime - old.gcTime)
+                .add(beanData.getCpuTimeMs() - old.getCpuTimeMs());
+        } else {
+            TABLE.addFixed(beanData.getGcFraction(ZERO_MBEAN_DATA))
+                .add(beanData.gcTime)
+                .add(beanData.getCpuTimeMs());
+        }
+        if (pauses != null) {
+            GcPauseTracker.Window window = pauses.getWindow(beanData.id);
+            if (window != null) {
+                TABLE.add(window.durations.getMax())
+                    .add(window.durations.getPercentile(0.99))
+                    .addFixed(window.getCollectionsPerSecond())
+                    .addBytes((long) window.getFreedBytesPerSecond())
+                    .add(window.maxCause == null ? "-" : window.maxCause);
             } else {
-                row.add(format(beanData.getGcFraction(ZERO_MBEAN_DATA)));
-                row.add("" + beanData.gcTime);
-                row.add("" + beanData.getCpuTimeMs());
+                TABLE.add('-').add('-').add('-').add('-').add('-');
             }
-            row.add(format(beanData.processCpuLoad));
-            row.add(beanData.getUsedMem());
-            row.add(beanData.getUsedOsMem());
-            row.add(beanData.getMaxMem());
-
-            row.add("" + beanData.openFileDescriptorCount);
-            row.add("" + beanData.threadCount);
-            row.add(beanData.getBufferPollMem());
-            row.add("" + beanData.loadedClassCount);
-            row.add(beanData.getHumanUptime());
-
-            row.add(beanData.name);
-
-            rows.add(row);
         }
-
-        printTable(rows);
+        TABLE.addFixed(beanData.processCpuLoad);
+        if (cgroups != null) {
+            double throttled = cgroups.getThrottledFraction(beanData.id);
+            if (throttled < 0) {
+                TABLE.add('-');
+            } else {
+                TABLE.addFixed(throttled);
+            }
+            double stalled = cgroups.getThrottledTimeFraction(beanData.id);
+            if (stalled < 0) {
+                TABLE.add('-');
+            } else {
+                TABLE.addFixed(stalled);
+            }
+        }
+        TABLE.addBytes(beanData.getUsedMem())
+            .addBytes(beanData.getUsedOsMem())
+            .addBytes(beanData.getMaxMem());
+        if (cgroups != null) {
+            TABLE.addBytes(cgroups.getMemory(beanData.id))
+                .addBytes(cgroups.getMemoryMax(beanData.id));
+        }
+        if (sampler != null) {
+            long secondsToOom = LEAKS.getSecondsToOom(beanData.id);
+            if (secondsToOom < 0) {
+                TABLE.add('-');
+            } else {
+                TABLE.addDuration(secondsToOom);
+            }
+        }
+        if (oneSecond && oldBean != null) {
+            TABLE.addBytes(Math.round(beanData.getAllocationRate(oldBean)))
+                .addBytes(Math.round(beanData.getPromotionRate(oldBean)));
+        } else {
+            TABLE.add('-').add('-');
+        }
+        TABLE.addBytes(beanData.rss)
+            .add(beanData.openFileDescriptorCount)
+            .add(beanData.threadCount)
+            .addBytes(beanData.getBufferPoolMem())
+            .add(beanData.loadedClassCount)
+            .addBytes(beanData.getIo())
+            .addDuration(beanData.uptime / 1_000)
+            .add(beanData.name);
     }
-    
-    private static void printTable(List<List<String>> rows) {
-        List<String> columnNames = 
-            Arrays.asList("C", "PID", "GC/CPU", "GC", "CPU", "LOAD", "MEM", "MEM+", "MAX", 
-                          "FILES", "THREADS", "FSMEM", "CLASSES", "UPTIME", "NAME");
-
-        List<Integer> maxColumnLengths = new ArrayList<>();
-        // - 1: last column is not padded
-        for (int i = 0; i < columnNames.size() - 1; i++) {
-            int maxLength = columnNames.get(i).length();
-            for (List<String> row : rows) {
-                int length = row.get(i).length();
-                if (length > maxLength) {
-                    maxLength = length;
+
+    /**
+     * Prints the records of the history file since the given age, each
+     * compared to the previous record of its jvm, or with every the last
+     * record of each jvm in each period of that length.
+     */
+    private static void printHistory(Path path, String pid, Duration since, Duration every) {
+        List<HistoryFile.Record> records;
+        Map<String, HistoryFile.Record> previous = new HashMap<>();
+        long sinceMillis = System.currentTimeMillis() - since.toMillis();
+        try (HistoryFile history = HistoryFile.openForReading(path)) {
+            records = history.read(sinceMillis, pid);
+            if (every != null) {
+                records = downsample(records, every.toMillis());
+            }
+            for (HistoryFile.Record record : records) {
+                if (!previous.containsKey(record.bean.id)) {
+                    // the rates of the first row are since the record before
+                    // it, or before its period
+                    long before = every == null
+                        ? record.millis : record.millis / every.toMillis() * every.toMillis();
+                    previous.put(record.bean.id, history.readLast(before, record.bean.id));
                 }
             }
-            maxColumnLengths.add(maxLength);
+        } catch (IOException e) {
+            System.err.println("Could not read " + path + ": " + e);
+            System.exit(1);
+            return;
         }
 
-        StringBuilder fmt = new StringBuilder();
-        for (Integer maxLength : maxColumnLengths) {
-            fmt.append("%" + maxLength + "s   ");
-        }
-        fmt.append("%s%n"); // last column and newline
-        
-        System.out.format(fmt.toString(), columnNames.toArray());
-        for (List<String> row : rows) {
-            System.out.format(fmt.toString(), row.toArray());
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+        TABLE.reset();
+        TABLE.add("TIME");
+        addAllHeader(false, false, false);
+        TABLE.endRow();
+        for (HistoryFile.Record record : records) {
+            HistoryFile.Record old = previous.get(record.bean.id);
+            TABLE.add(format.format(Instant.ofEpochMilli(record.millis)));
+            addAllRow(record.bean, old == null ? null : old.bean, true, null, null, null);
+            TABLE.endRow();
+            previous.put(record.bean.id, record);
         }
+        TEXT.clear();
+        TABLE.render(TEXT);
+        print(TEXT);
     }
 
-    private static String format(double d) {
-        return String.format("%.2f", d);
+    /**
+     * The last record of each jvm in each period of periodMillis, ordered
+     * by time.
+     */
+    private static List<HistoryFile.Record> downsample(List<HistoryFile.Record> records,
+                                                       long periodMillis) {
+        List<HistoryFile.Record> downsampled = new ArrayList<>();
+        Map<String, HistoryFile.Record> pending = new LinkedHashMap<>();
+        for (HistoryFile.Record record : records) {
+            HistoryFile.Record last = pending.get(record.bean.id);
+            if (last != null && last.millis / periodMillis != record.millis / periodMillis) {
+                downsampled.add(last);
+            }
+            pending.put(record.bean.id, record);
+        }
+        downsampled.addAll(pending.values());
+        downsampled.sort(Comparator.comparingLong(record -> record.millis));
+        return downsampled;
     }
-
-    private static String getRunningJvmId() {
-        String name = ManagementFactory.getRuntimeMXBean().getName();
-        if (name.contains("@")) {
-            return name.substring(0, name.indexOf("@"));
-        } else {
-            return null;
+    
+    private static void printBreakdown(String pid, boolean oneSecond) {
+        Map<String, MBeanData> oldBeans = new HashMap<>();
+        if (oneSecond) {
+            oldBeans = toMap(getBeans(pid));
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                // empty
+            }
         }
+        print(renderBreakdown(getBeans(pid), oldBeans, oneSecond));
     }
 
-    private static MBeanData getMBeanData(VirtualMachineDescriptor vmDesc) {
-        MBeanData.Builder builder = new MBeanData.Builder();
-        builder.id(vmDesc.id());
-        builder.name(vmDesc.displayName());
-        try {
-            VirtualMachine vm = VirtualMachine.attach(vmDesc);
-            Properties props = vm.getAgentProperties();
-            String connectorAddress = vm.getAgentProperties()
-                .getProperty("com.sun.management.jmxremote.localConnectorAddress");
-            if (connectorAddress == null) {
-                // start up JMX on the virtual machine
-                String agent = vm.getSystemProperties().getProperty("java.home") +
-                    File.separator + "lib" + File.separator + 
-                    "management-agent.jar";
-                vm.loadAgent(agent);
-                connectorAddress = vm.getAgentProperties()
-                    .getProperty("com.sun.management.jmxremote.localConnectorAddress");
-            }
-            JMXServiceURL url = new JMXServiceURL(connectorAddress);
-            try (JMXConnector connector = JMXConnectorFactory.connect(url);) {
-                    MBeanServerConnection mbeanConn = connector.getMBeanServerConnection();
-
-                    builder
-                        .cpuTime(getCpuTime(mbeanConn))
-                        .gcTime(getGcTime(mbeanConn))
-                        .heapMemory(getHeapMemoryUsage(mbeanConn))
-                        .nonHeapMemory(getNonHeapMemoryUsage(mbeanConn))
-                        .openFileDescriptorCount(getOpenFileDescriptorCount(mbeanConn))
-                        .maxFileDescriptorCount(getMaxFileDescriptorCount(mbeanConn))
-                        .threadCount(getThreadCount(mbeanConn))
-                        .nioBufferPoolDirectMemoryUsed(getNioBufferPoolDirectMemoryUsed(mbeanConn))
-                        .nioBufferPoolMappedMemoryUsed(getNioBufferPoolMappedMemoryUsed(mbeanConn))
-                        .loadedClassCount(getLoadedClassCount(mbeanConn))
-                        .processCpuLoad(getProcessCpuLoad(mbeanConn))
-                        .uptime(getUptime(mbeanConn));
+    /**
+     * Renders a row per garbage collector and per heap memory pool of each
+     * jvm into TEXT.
+     */
+    static TextBuffer renderBreakdown(List<MBeanData> beans, Map<String, MBeanData> oldBeans,
+                                      boolean oneSecond) {
+        TABLE.reset();
+        TABLE.add("PID").add("KIND").add("COUNT").add("GC").add("USED").add("COMMITTED")
+            .add("MAX").add("NAME")
+            .endRow();
+
+        for (MBeanData beanData : beans) {
+            MBeanData old = oldBeans.get(beanData.id);
+            for (int i = 0; i < beanData.collectorNames.length; i++) {
+                String name = beanData.collectorNames[i];
+                long count = beanData.collectionCounts[i];
+                long time = beanData.collectionTimes[i];
+                if (oneSecond) {
+                    // value changes in last second (or interval when following)
+                    int oldIndex = old == null
+                        ? -1 : Arrays.asList(old.collectorNames).indexOf(name);
+                    count -= oldIndex < 0 ? count : old.collectionCounts[oldIndex];
+                    time -= oldIndex < 0 ? time : old.collectionTimes[oldIndex];
                 }
-        } catch (Exception e) {
-            return null;
+                TABLE.add(beanData.id).add("gc").add(count).add(time).add("").add("").add("")
+                    .add(name)
+                    .endRow();
+            }
+            for (int i = 0; i < beanData.poolNames.length; i++) {
+                MemoryUsage usage = beanData.poolUsages[i];
+                TABLE.add(beanData.id).add("pool").add("").add("")
+                    .addBytes(usage.getUsed())
+                    .addBytes(usage.getCommitted())
+                    .addBytes(usage.getMax())
+                    .add(beanData.poolNames[i])
+                    .endRow();
+            }
         }
 
-        return builder.finish();
+        TEXT.clear();
+        TABLE.render(TEXT);
+        return TEXT;
     }
 
-    private static Long getCpuTime(MBeanServerConnection conn) {
-        try {
-            ObjectName osName = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
-
-            MBeanInfo info = conn.getMBeanInfo(osName);
-            MBeanAttributeInfo[] attrs = info.getAttributes();
-            
-            long processCPUTimeMultiplier = 1;
-            for (MBeanAttributeInfo attr : attrs) {
-                String name = attr.getName();
-                if ("ProcessingCapacity".equals(name)) {
-                    Number mul = (Number) conn.getAttribute(osName, name);
-                    processCPUTimeMultiplier = mul.longValue();
+    /**
+     * Prints the hottest threads of each jvm: over their lifetime, over 1
+     * second, or over each interval when following.
+     */
+    private static void printHotThreads(String pid, boolean oneSecond, boolean follow,
+                                        Duration interval) {
+        if (usePerfData) {
+            System.err.println("-t needs to attach, it cannot be used with -p");
+            System.exit(1);
+        }
+        if (oneSecond || follow) {
+            // the first sample only sets the cpu times to compare to
+            getHotThreads(pid);
+        }
+        boolean printed;
+        do {
+            if (oneSecond || follow) {
+                try {
+                    Thread.sleep(follow ? interval.toMillis() : 1000);
+                } catch (InterruptedException e) {
+                    return;
                 }
             }
-            
-            Long cputime = (Long) conn.getAttribute(osName, "ProcessCpuTime");
-            
-            return cputime * processCPUTimeMultiplier;
-        } catch (Exception e) {
-            return -1L;
-        }
+            printed = print(renderHotThreads(getHotThreads(pid)));
+        } while (follow && printed);
     }
 
-    private static Long getGcTime(MBeanServerConnection conn) {
-        try {
-            long gcTimeTotal = 0;
-            ObjectName gcNames = 
-                new ObjectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*");
-            for (ObjectName name : conn.queryNames(gcNames, null)) {
-                long gcTime = (Long) conn.getAttribute(name, "CollectionTime");
-                gcTimeTotal += gcTime;
-            }
-            return gcTimeTotal;
-        } catch (Exception e) {
-            return -1L;
+    private static Map<String, List<HotThreads.HotThread>> getHotThreads(String pid) {
+        String runningJvmId = getRunningJvmId();
+        List<VirtualMachineDescriptor> descs = new ArrayList<>(VirtualMachine.list());
+        descs.sort(Comparator.comparing((VirtualMachineDescriptor desc) -> desc.id().length())
+                   .thenComparing(VirtualMachineDescriptor::id));
+        Set<String> liveIds = new HashSet<>(REMOTE_TARGETS.keySet());
+        for (VirtualMachineDescriptor desc : descs) {
+            liveIds.add(desc.id());
         }
-    }
+        CONNECTIONS.retain(liveIds);
+        HOT_THREADS.retain(liveIds);
 
-    private static MemoryUsage getHeapMemoryUsage(MBeanServerConnection conn) {
-        try {
-            ObjectName memName = 
-                new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME);
-                return MemoryUsage.from((CompositeData) conn.getAttribute(memName, "HeapMemoryUsage"));
-        } catch (Exception e) {
-            return NONE_MEMORY_USAGE;
+        long start = System.nanoTime();
+        Map<String, Future<List<HotThreads.HotThread>>> futures = new LinkedHashMap<>();
+        for (VirtualMachineDescriptor desc : descs) {
+            if (!desc.id().equals(runningJvmId) && (pid == null || pid.equals(desc.id()))) {
+                futures.put(desc.id(), COLLECTOR.submit(
+                                () -> sampleHotThreads(desc.id(), () -> CONNECTIONS.get(desc))));
+            }
         }
-    }
-
-    private static MemoryUsage getNonHeapMemoryUsage(MBeanServerConnection conn) {
-        try {
-            ObjectName memName = 
-                new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME);
-            return MemoryUsage.from((CompositeData) conn.getAttribute(memName, "NonHeapMemoryUsage"));
-        } catch (Exception e) {
-            return NONE_MEMORY_USAGE;
+        for (RemoteTarget remote : REMOTE_TARGETS.values()) {
+            if (pid == null || pid.equals(remote.id)) {
+                futures.put(remote.id, COLLECTOR.submit(
+                                () -> sampleHotThreads(remote.id, () -> CONNECTIONS.get(remote))));
+            }
         }
-    }
 
-    private static long getOpenFileDescriptorCount(MBeanServerConnection conn) {
-        try {
-            ObjectName osName = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
-            return (Long) conn.getAttribute(osName, "OpenFileDescriptorCount");
-        } catch (Exception e) {
-            return -1L;
+        Map<String, List<HotThreads.HotThread>> hotThreads = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<List<HotThreads.HotThread>>> entry : futures.entrySet()) {
+            RemoteTarget remote = REMOTE_TARGETS.get(entry.getKey());
+            Duration timeout = remote == null || remote.timeout == null ? targetTimeout
+                : remote.timeout;
+            try {
+                hotThreads.put(entry.getKey(),
+                               entry.getValue().get(Math.max(0, start + timeout.toNanos()
+                                                             - System.nanoTime()),
+                                                    TimeUnit.NANOSECONDS));
+            } catch (TimeoutException | ExecutionException e) {
+                hotThreads.put(entry.getKey(), Collections.emptyList());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
         }
+        return hotThreads;
     }
 
-    private static long getMaxFileDescriptorCount(MBeanServerConnection conn) {
+    private static List<HotThreads.HotThread> sampleHotThreads(
+        String id, JmxConnectionCache.ConnectionSupplier connection) {
         try {
-            ObjectName osName = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
-            return (Long) conn.getAttribute(osName, "MaxFileDescriptorCount");
+            return HOT_THREADS.sample(id, connection.get(), topThreads);
         } catch (Exception e) {
-            return -1L;
+            CONNECTIONS.invalidate(id);
+            return Collections.emptyList();
         }
     }
 
-    private static int getThreadCount(MBeanServerConnection conn) {
-        try {
-            ObjectName osName = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
-            return (Integer) conn.getAttribute(osName, "ThreadCount");
-        } catch (Exception e) {
-            e.printStackTrace();
-            return -1;
+    private static TextBuffer renderHotThreads(Map<String, List<HotThreads.HotThread>> hotThreads) {
+        TABLE.reset();
+        TABLE.add("PID").add("TID").add("CPU%").add("CPU").add("STATE").add("NAME").endRow();
+        for (Map.Entry<String, List<HotThreads.HotThread>> entry : hotThreads.entrySet()) {
+            for (HotThreads.HotThread thread : entry.getValue()) {
+                TABLE.add(entry.getKey()).add(thread.threadId);
+                if (thread.cpuFraction < 0) {
+                    TABLE.add('-');
+                } else {
+                    TABLE.cell().appendFixed(thread.cpuFraction * 100, 1);
+                    TABLE.endCell();
+                }
+                TABLE.add(thread.cpuTime / 1_000_000)
+                    .add(thread.state.name())
+                    .add(thread.name)
+                    .endRow();
+            }
         }
+        TEXT.clear();
+        TABLE.render(TEXT);
+        return TEXT;
     }
 
-    private static long getNioBufferPoolDirectMemoryUsed(MBeanServerConnection conn) {
-        try {
-            return (Long) conn.getAttribute(new ObjectName("java.nio:type=BufferPool,name=direct"),
-                                     "MemoryUsed");
-        } catch (Exception e) {
-            return -1L;
-        }
+    /**
+     * Collects from the jvms once and prints how long each phase took.
+     */
+    private static void printTargetStats(String pid) {
+        getBeans(pid);
+        print(renderTargetStats());
     }
 
-    private static long getNioBufferPoolMappedMemoryUsed(MBeanServerConnection conn) {
-        try {
-            return (Long) conn.getAttribute(new ObjectName("java.nio:type=BufferPool,name=mapped"),
-                                     "MemoryUsed");
-        } catch (Exception e) {
-            return -1L;
+    /**
+     * Renders a row per phase of each jvm that has run, with latencies in
+     * ms, into TEXT.
+     */
+    private static TextBuffer renderTargetStats() {
+        TABLE.reset();
+        TABLE.add("PID").add("PHASE").add("COUNT").add("ERRORS").add("MEAN").add("P50").add("P99")
+            .add("MAX")
+            .endRow();
+        for (String id : STATS.getIds()) {
+            for (TargetStats.Phase phase : TargetStats.Phase.values()) {
+                LatencyHistogram latencies = STATS.getLatencies(id, phase);
+                long errors = STATS.getErrors(id, phase);
+                if (latencies == null || latencies.getCount() == 0 && errors == 0) {
+                    continue;
+                }
+                TABLE.add(id).add(phase.label).add(latencies.getCount()).add(errors)
+                    .addFixed(latencies.getMean() / 1_000.0)
+                    .addFixed(latencies.getPercentile(0.5) / 1_000.0)
+                    .addFixed(latencies.getPercentile(0.99) / 1_000.0)
+                    .addFixed(latencies.getMax() / 1_000.0)
+                    .endRow();
+            }
         }
+        TEXT.clear();
+        TABLE.render(TEXT);
+        return TEXT;
     }
 
-    private static int getLoadedClassCount(MBeanServerConnection conn) {
-        try {
-            ObjectName clName = new ObjectName(ManagementFactory.CLASS_LOADING_MXBEAN_NAME);
-            return (Integer) conn.getAttribute(clName, "LoadedClassCount");
-        } catch (Exception e) {
-            return -1;
+    /**
+     * Renders the last closed jfr window of each of beans.
+     */
+    private static TextBuffer renderJfr(List<MBeanData> beans, JfrStreams jfr) {
+        TABLE.reset();
+        TABLE.add("PID").add("ALLOC/S").add("TOP%").add("TOPALLOC").add("GCS").add("SAFEP")
+            .add("MONITOR").add("STALL").add("KIND").add("WHERE")
+            .endRow();
+        for (MBeanData beanData : beans) {
+            JfrStreams.Window window = jfr.getWindow(beanData.id);
+            if (window == null) {
+                continue;
+            }
+            TABLE.add(beanData.id).addBytes(window.getAllocatedBytesPerSecond());
+            if (window.topSite == null) {
+                TABLE.add("-").add("-");
+            } else {
+                TABLE.add(window.topSiteBytes * 100 / Math.max(1, window.allocatedBytes))
+                    .add(window.topSite);
+            }
+            TABLE.add(window.garbageCollections).add(window.safepoints).add(window.monitorEnters);
+            if (window.stallKind == null) {
+                TABLE.add("-").add("-").add("-");
+            } else {
+                TABLE.addFixed(window.stallNanos / 1_000_000.0).add(window.stallKind)
+                    .add(window.stallSite == null ? "-" : window.stallSite);
+            }
+            TABLE.endRow();
         }
+        TEXT.clear();
+        TABLE.render(TEXT);
+        return TEXT;
     }
 
-    private static double getProcessCpuLoad(MBeanServerConnection conn) {
+    /**
+     * Writes text to stdout, returns false if stdout is closed.
+     */
+    private static boolean print(TextBuffer text) {
         try {
-            ObjectName osName = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
-            return (Double) conn.getAttribute(osName, "ProcessCpuLoad");
-        } catch (Exception e) {
-            return -1.0;
+            text.writeTo(STDOUT);
+            return true;
+        } catch (IOException e) {
+            return false;
         }
     }
 
-    private static long getUptime(MBeanServerConnection conn) {
-        try {
-            ObjectName osName = new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME);
-            return (Long) conn.getAttribute(osName, "Uptime");
-        } catch (Exception e) {
-            return -1L;
+    private static String getRunningJvmId() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        if (name.contains("@")) {
+            return name.substring(0, name.indexOf("@"));
+        } else {
+            return null;
         }
     }
 
@@ -461,154 +1503,4 @@ public class JvmGcStats {
         String pre = "" + "KMGTPE".charAt(exp-1);
         return String.format("%.0f%s", bytes / Math.pow(unit, exp), pre);
     }
-    
-    private static class MBeanData {
-        public final String id;
-        public final String name;
-        // in nano seconds
-        public final long cpuTime;
-        // in milli seconds
-        public final long gcTime;
-        public final MemoryUsage heapMemory;
-        public final MemoryUsage nonHeapMemory;
-        public final long openFileDescriptorCount;
-        public final long maxFileDescriptorCount;
-        public final int threadCount;
-        public final long nioBufferPoolDirectMemoryUsed;
-        public final long nioBufferPoolMappedMemoryUsed;
-        public final int loadedClassCount;
-        public final double processCpuLoad;
-        public final long uptime;
-
-        private MBeanData(Builder builder) {
-            this.id = Objects.requireNonNull(builder.id);
-            this.name = Objects.requireNonNull(builder.name);
-            this.cpuTime = builder.cpuTime.longValue();
-            this.gcTime = builder.gcTime.longValue();
-            this.heapMemory = Objects.requireNonNull(builder.heapMemory);
-            this.nonHeapMemory = Objects.requireNonNull(builder.nonHeapMemory);
-            this.openFileDescriptorCount = builder.openFileDescriptorCount.longValue();
-            this.maxFileDescriptorCount = builder.maxFileDescriptorCount.longValue();
-            this.threadCount = builder.threadCount.intValue();
-            this.nioBufferPoolDirectMemoryUsed = 
-                builder.nioBufferPoolDirectMemoryUsed.longValue();
-            this.nioBufferPoolMappedMemoryUsed = 
-                builder.nioBufferPoolMappedMemoryUsed.longValue();
-            this.loadedClassCount = builder.loadedClassCount.intValue();
-            this.processCpuLoad = builder.processCpuLoad.doubleValue();
-            this.uptime = builder.uptime.longValue();
-        }
-
-        public double getGcFraction(MBeanData olderData) {
-            long cpuTimeDiff = cpuTime - olderData.cpuTime;
-            long gcTimeDiff = gcTime - olderData.gcTime;
-            gcTimeDiff = gcTimeDiff * 1_000_000; // milli seconds to nano seconds
-            return cpuTimeDiff == 0 ? 0.0 : (double) gcTimeDiff / cpuTimeDiff;
-        }
-        public String getUsedMem() {
-            long used = heapMemory.getUsed() + nonHeapMemory.getUsed();
-            return humanBytes(used);
-        }
-        public String getUsedOsMem() {
-            long usedOs = heapMemory.getCommitted() + nonHeapMemory.getCommitted();
-            return humanBytes(usedOs);
-        }
-        public String getMaxMem() {
-            return humanBytes(heapMemory.getMax());
-        }
-        public long getCpuTimeMs() {
-            return cpuTime / 1_000_000;
-        }
-
-        public String getBufferPollMem() {
-            return humanBytes(nioBufferPoolDirectMemoryUsed + nioBufferPoolMappedMemoryUsed);
-        }
-
-        public String getHumanUptime() {
-            return Duration.ofSeconds(uptime / 1_000).toString();
-        }
-
-        @Override
-        public String toString() {
-            return "MBeanData["+id+"("+name+"), cpu="+cpuTime+", gc="+gcTime+"]";
-        }
-
-        private static class Builder {
-            private String id;
-            private String name;
-            private Long cpuTime;
-            private Long gcTime;
-            private MemoryUsage heapMemory;
-            private MemoryUsage nonHeapMemory;
-            private Long openFileDescriptorCount;
-            private Long maxFileDescriptorCount;
-            private Integer threadCount;
-            private Long nioBufferPoolDirectMemoryUsed;
-            private Long nioBufferPoolMappedMemoryUsed;
-            private Integer loadedClassCount;
-            private Double processCpuLoad;
-            private Long uptime;
-
-            public Builder id(String id) {
-                this.id = id;
-                return this;
-            }
-
-            public Builder name(String name) {
-                this.name = name;
-                return this;
-            }
-            public Builder cpuTime(long cpuTime) {
-                this.cpuTime = cpuTime;
-                return this;
-            }
-            public Builder gcTime(long gcTime) {
-                this.gcTime = gcTime;
-                return this;
-            }
-            public Builder heapMemory(MemoryUsage heapMemory) {
-                this.heapMemory = heapMemory;
-                return this;
-            }
-            public Builder nonHeapMemory(MemoryUsage nonHeapMemory) {
-                this.nonHeapMemory = nonHeapMemory;
-                return this;
-            }
-            public Builder openFileDescriptorCount(long openFileDescriptorCount) {
-                this.openFileDescriptorCount = openFileDescriptorCount;
-                return this;
-            }
-            public Builder maxFileDescriptorCount(long maxFileDescriptorCount) {
-                this.maxFileDescriptorCount = maxFileDescriptorCount;
-                return this;
-            }
-            public Builder threadCount(int threadCount) {
-                this.threadCount = threadCount;
-                return this;
-            }
-            public Builder nioBufferPoolDirectMemoryUsed(long nioBufferPoolDirectMemoryUsed) {
-                this.nioBufferPoolDirectMemoryUsed = nioBufferPoolDirectMemoryUsed;
-                return this;
-            }
-            public Builder nioBufferPoolMappedMemoryUsed(long nioBufferPoolMappedMemoryUsed) {
-                this.nioBufferPoolMappedMemoryUsed = nioBufferPoolMappedMemoryUsed;
-                return this;
-            }
-            public Builder loadedClassCount(int loadedClassCount) {
-                this.loadedClassCount = loadedClassCount;
-                return this;
-            }
-            public Builder processCpuLoad(double processCpuLoad) {
-                this.processCpuLoad = processCpuLoad;
-                return this;
-            }
-            public Builder uptime(long uptime) {
-                this.uptime = uptime;
-                return this;
-            }
-            public MBeanData finish() {
-                return new MBeanData(this);
-            }
-        }
-    }
 }
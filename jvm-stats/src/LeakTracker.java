@@ -0,0 +1,95 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Predicts when each jvm runs out of heap from its old generation usage
+ * after collections, the part of the heap a leak grows. Every new
+ * post-collection usage is added to an exponentially weighted least
+ * squares fit of usage over uptime, so older collections fade out, an
+ * update is O(1) and no samples are kept.
+ */
+class LeakTracker {
+    // weight of the previous points at each new point, ~20 points count
+    private static final double DECAY = 0.95;
+    // points before predicting, fewer fit any noise
+    private static final int MIN_POINTS = 5;
+
+    private final Map<String, Fit> fits = new ConcurrentHashMap<>();
+
+    /**
+     * Adds the post-collection old generation usage of bean if it changed
+     * since the last update.
+     */
+    public void update(MBeanData bean) {
+        long used = bean.getOldCollectionUsed();
+        long max = bean.getOldMax();
+        if (used < 0 || max <= 0 || bean.uptime <= 0) {
+            return;
+        }
+        fits.computeIfAbsent(bean.id, id -> new Fit()).add(bean.uptime, used, max);
+    }
+
+    /**
+     * Seconds until the old generation of the jvm is full at its growth so
+     * far, or -1 if it is not growing or not known yet.
+     */
+    public long getSecondsToOom(String id) {
+        Fit fit = fits.get(id);
+        return fit == null ? -1L : fit.secondsToOom;
+    }
+
+    /**
+     * Forgets the jvms not in liveIds.
+     */
+    public void retain(Set<String> liveIds) {
+        fits.keySet().retainAll(liveIds);
+    }
+
+    private static class Fit {
+        // sums of weights, x, y, x*x and x*y, x in seconds since the first
+        // point and y in bytes
+        private double weights;
+        private double sumX;
+        private double sumY;
+        private double sumXX;
+        private double sumXY;
+        private long firstUptime = -1L;
+        private long lastUptime = -1L;
+        private long lastUsed = -1L;
+        private int points = 0;
+        private volatile long secondsToOom = -1L;
+
+        private synchronized void add(long uptime, long used, long max) {
+            if (used == lastUsed) {
+                // no collection since the last sample
+                return;
+            }
+            if (firstUptime < 0 || uptime < lastUptime) {
+                // first point, or the pid was reused by a new jvm
+                firstUptime = uptime;
+                weights = sumX = sumY = sumXX = sumXY = 0;
+                points = 0;
+            }
+            lastUsed = used;
+            lastUptime = uptime;
+            double x = (uptime - firstUptime) / 1_000.0;
+            weights = weights * DECAY + 1;
+            sumX = sumX * DECAY + x;
+            sumY = sumY * DECAY + used;
+            sumXX = sumXX * DECAY + x * x;
+            sumXY = sumXY * DECAY + x * used;
+            points++;
+
+            double denominator = weights * sumXX - sumX * sumX;
+            if (points < MIN_POINTS || denominator <= 0) {
+                secondsToOom = -1L;
+                return;
+            }
+            // bytes per second
+            double slope = (weights * sumXY - sumX * sumY) / denominator;
+            double intercept = (sumY - slope * sumX) / weights;
+            double fitted = intercept + slope * x;
+            secondsToOom = slope <= 0 ? -1L : (long) Math.max(0, (max - fitted) / slope);
+        }
+    }
+}
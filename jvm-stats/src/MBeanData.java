@@ -0,0 +1,432 @@
+import java.lang.management.*;
+import java.util.*;
+
+class MBeanData {
+    static final MemoryUsage NONE_MEMORY_USAGE = new MemoryUsage(0L, 0L, 0L, 0L);
+    private static final String[] NO_NAMES = new String[0];
+    private static final long[] NO_LONGS = new long[0];
+    private static final MemoryUsage[] NO_USAGES = new MemoryUsage[0];
+
+    enum Status {
+        OK,
+        // the jvm did not answer within the timeout, all values are zero
+        TIMED_OUT,
+        // the jvm could not be attached to, only what /proc knows is set
+        DEGRADED,
+        // the remote jvm could not be connected to or read, all values are
+        // zero
+        UNREACHABLE
+    }
+
+    public final String id;
+    public final String name;
+    // in nano seconds
+    public final long cpuTime;
+    // in milli seconds
+    public final long gcTime;
+    public final MemoryUsage heapMemory;
+    public final MemoryUsage nonHeapMemory;
+    public final long openFileDescriptorCount;
+    public final long maxFileDescriptorCount;
+    public final int threadCount;
+    public final long nioBufferPoolDirectMemoryUsed;
+    public final long nioBufferPoolMappedMemoryUsed;
+    public final int loadedClassCount;
+    public final double processCpuLoad;
+    public final long uptime;
+    // resident set size in bytes, -1 if unknown
+    public final long rss;
+    // bytes read from and written to storage, -1 if unknown
+    public final long ioReadBytes;
+    public final long ioWriteBytes;
+    // per garbage collector, collection times in milli seconds
+    public final String[] collectorNames;
+    public final long[] collectionCounts;
+    public final long[] collectionTimes;
+    // per heap memory pool, the collection usages are empty if unknown
+    public final String[] poolNames;
+    public final MemoryUsage[] poolUsages;
+    public final MemoryUsage[] poolCollectionUsages;
+    public final Status status;
+
+    private MBeanData(Builder builder) {
+        this.id = Objects.requireNonNull(builder.id);
+        this.name = Objects.requireNonNull(builder.name);
+        this.cpuTime = builder.cpuTime;
+        this.gcTime = builder.gcTime;
+        this.heapMemory = Objects.requireNonNull(builder.heapMemory);
+        this.nonHeapMemory = Objects.requireNonNull(builder.nonHeapMemory);
+        this.openFileDescriptorCount = builder.openFileDescriptorCount;
+        this.maxFileDescriptorCount = builder.maxFileDescriptorCount;
+        this.threadCount = builder.threadCount;
+        this.nioBufferPoolDirectMemoryUsed = 
+            builder.nioBufferPoolDirectMemoryUsed;
+        this.nioBufferPoolMappedMemoryUsed = 
+            builder.nioBufferPoolMappedMemoryUsed;
+        this.loadedClassCount = builder.loadedClassCount;
+        this.processCpuLoad = builder.processCpuLoad;
+        this.uptime = builder.uptime;
+        this.rss = builder.rss;
+        this.ioReadBytes = builder.ioReadBytes;
+        this.ioWriteBytes = builder.ioWriteBytes;
+        this.collectorNames = builder.collectorNames;
+        this.collectionCounts = builder.collectionCounts;
+        this.collectionTimes = builder.collectionTimes;
+        this.poolNames = builder.poolNames;
+        this.poolUsages = builder.poolUsages;
+        this.poolCollectionUsages = builder.poolCollectionUsages;
+        this.status = Objects.requireNonNull(builder.status);
+    }
+
+    public static MBeanData timedOut(String id, String name) {
+        return empty(id, name, Status.TIMED_OUT);
+    }
+
+    public static MBeanData unreachable(String id, String name) {
+        return empty(id, name, Status.UNREACHABLE);
+    }
+
+    private static MBeanData empty(String id, String name, Status status) {
+        return new Builder().id(id)
+            .name(name)
+            .cpuTime(0L)
+            .gcTime(0L)
+            .heapMemory(NONE_MEMORY_USAGE)
+            .nonHeapMemory(NONE_MEMORY_USAGE)
+            .openFileDescriptorCount(0L)
+            .maxFileDescriptorCount(0L)
+            .threadCount(0)
+            .nioBufferPoolDirectMemoryUsed(0L)
+            .nioBufferPoolMappedMemoryUsed(0L)
+            .loadedClassCount(0)
+            .processCpuLoad(0.0)
+            .uptime(0L)
+            .status(status)
+            .finish();
+    }
+
+    /**
+     * Whether anything was read from the jvm, false if it timed out or
+     * could not be reached.
+     */
+    public boolean hasData() {
+        return status != Status.TIMED_OUT && status != Status.UNREACHABLE;
+    }
+
+    public double getGcFraction(MBeanData olderData) {
+        long cpuTimeDiff = cpuTime - olderData.cpuTime;
+        long gcTimeDiff = gcTime - olderData.gcTime;
+        gcTimeDiff = gcTimeDiff * 1_000_000; // milli seconds to nano seconds
+        return cpuTimeDiff == 0 ? 0.0 : (double) gcTimeDiff / cpuTimeDiff;
+    }
+
+    /**
+     * Bytes allocated per second since olderData, estimated from the used
+     * eden space and the number of young collections in between, each of
+     * which is assumed to have found eden full. -1 if unknown.
+     */
+    public double getAllocationRate(MBeanData olderData) {
+        int eden = findPool(this, true);
+        int oldEden = findPool(olderData, true);
+        long elapsed = uptime - olderData.uptime;
+        // the same pools when they were not read again
+        if (eden < 0 || oldEden < 0 || elapsed <= 0 || poolUsages == olderData.poolUsages) {
+            return -1.0;
+        }
+        long youngCollections = getCollectionCount(true) - olderData.getCollectionCount(true);
+        long oldCollections = getCollectionCount(false) - olderData.getCollectionCount(false);
+        MemoryUsage usage = poolUsages[eden];
+        MemoryUsage oldUsage = olderData.poolUsages[oldEden];
+        long allocated;
+        if (youngCollections <= 0 && oldCollections <= 0) {
+            allocated = Math.max(0, usage.getUsed() - oldUsage.getUsed());
+        } else {
+            long collections = Math.max(1, youngCollections + oldCollections);
+            allocated = Math.max(0, oldUsage.getCommitted() - oldUsage.getUsed())
+                + (collections - 1) * oldUsage.getCommitted()
+                + usage.getUsed();
+        }
+        return allocated * 1000.0 / elapsed;
+    }
+
+    /**
+     * Bytes per second the old generation has grown since olderData, when
+     * there were only young collections in between. -1 if unknown.
+     */
+    public double getPromotionRate(MBeanData olderData) {
+        int old = findPool(this, false);
+        int oldOld = findPool(olderData, false);
+        long elapsed = uptime - olderData.uptime;
+        if (old < 0 || oldOld < 0 || elapsed <= 0 || poolUsages == olderData.poolUsages
+            || getCollectionCount(false) != olderData.getCollectionCount(false)) {
+            return -1.0;
+        }
+        if (getCollectionCount(true) == olderData.getCollectionCount(true)) {
+            return 0.0;
+        }
+        long promoted = poolUsages[old].getUsed() - olderData.poolUsages[oldOld].getUsed();
+        return Math.max(0, promoted) * 1000.0 / elapsed;
+    }
+
+    /**
+     * Total collections of the young (or all other) garbage collectors.
+     */
+    public long getCollectionCount(boolean young) {
+        long count = 0;
+        for (int i = 0; i < collectorNames.length; i++) {
+            if (isYoungCollector(collectorNames[i]) == young) {
+                count += Math.max(0, collectionCounts[i]);
+            }
+        }
+        return count;
+    }
+
+    static boolean isYoungCollector(String name) {
+        return containsIgnoreCase(name, "young") || containsIgnoreCase(name, "scavenge")
+            || containsIgnoreCase(name, "parnew") || name.equalsIgnoreCase("copy")
+            || containsIgnoreCase(name, "partial");
+    }
+
+    /**
+     * Index of the eden (or old generation) pool, or -1.
+     */
+    static int findPool(MBeanData data, boolean eden) {
+        for (int i = 0; i < data.poolNames.length; i++) {
+            String name = data.poolNames[i];
+            boolean match = eden
+                ? containsIgnoreCase(name, "eden")
+                : containsIgnoreCase(name, "old") || containsIgnoreCase(name, "tenured");
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // unlike toLowerCase().contains() this does not allocate
+    private static boolean containsIgnoreCase(String s, String part) {
+        for (int i = 0; i + part.length() <= s.length(); i++) {
+            if (s.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bytes used in the old generation after its last collection, or -1 if
+     * unknown.
+     */
+    public long getOldCollectionUsed() {
+        int old = findPool(this, false);
+        if (old < 0 || old >= poolCollectionUsages.length
+            || poolCollectionUsages[old] == NONE_MEMORY_USAGE) {
+            return -1L;
+        }
+        return poolCollectionUsages[old].getUsed();
+    }
+
+    /**
+     * Max bytes of the old generation, or of the heap if the pool has no
+     * max. -1 if unknown.
+     */
+    public long getOldMax() {
+        int old = findPool(this, false);
+        long max = old < 0 ? -1L : poolUsages[old].getMax();
+        return max < 0 ? heapMemory.getMax() : max;
+    }
+
+    /**
+     * Heap and non-heap memory used.
+     */
+    public long getUsedMem() {
+        return heapMemory.getUsed() + nonHeapMemory.getUsed();
+    }
+
+    /**
+     * Heap and non-heap memory allocated to the jvm by the os.
+     */
+    public long getUsedOsMem() {
+        return heapMemory.getCommitted() + nonHeapMemory.getCommitted();
+    }
+
+    public long getMaxMem() {
+        return heapMemory.getMax();
+    }
+
+    public long getCpuTimeMs() {
+        return cpuTime / 1_000_000;
+    }
+
+    /**
+     * Direct and mapped buffer pool bytes, or -1 if unknown.
+     */
+    public long getBufferPoolMem() {
+        if (nioBufferPoolDirectMemoryUsed < 0 || nioBufferPoolMappedMemoryUsed < 0) {
+            return -1L;
+        }
+        return nioBufferPoolDirectMemoryUsed + nioBufferPoolMappedMemoryUsed;
+    }
+
+    /**
+     * Bytes read and written, or -1 if unknown.
+     */
+    public long getIo() {
+        if (ioReadBytes < 0 || ioWriteBytes < 0) {
+            return -1L;
+        }
+        return ioReadBytes + ioWriteBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "MBeanData["+id+"("+name+"), cpu="+cpuTime+", gc="+gcTime+"]";
+    }
+
+    static class Builder {
+        // the primitive fields without a default, in the order of their bits
+        // in unset
+        private static final String[] REQUIRED = {
+            "cpuTime", "gcTime", "openFileDescriptorCount", "maxFileDescriptorCount",
+            "threadCount", "nioBufferPoolDirectMemoryUsed", "nioBufferPoolMappedMemoryUsed",
+            "loadedClassCount", "processCpuLoad", "uptime"
+        };
+
+        private int unset = (1 << REQUIRED.length) - 1;
+        private String id;
+        private String name;
+        private long cpuTime;
+        private long gcTime;
+        private MemoryUsage heapMemory;
+        private MemoryUsage nonHeapMemory;
+        private long openFileDescriptorCount;
+        private long maxFileDescriptorCount;
+        private int threadCount;
+        private long nioBufferPoolDirectMemoryUsed;
+        private long nioBufferPoolMappedMemoryUsed;
+        private int loadedClassCount;
+        private double processCpuLoad;
+        private long uptime;
+        private long rss = -1L;
+        private long ioReadBytes = -1L;
+        private long ioWriteBytes = -1L;
+        private String[] collectorNames = NO_NAMES;
+        private long[] collectionCounts = NO_LONGS;
+        private long[] collectionTimes = NO_LONGS;
+        private String[] poolNames = NO_NAMES;
+        private MemoryUsage[] poolUsages = NO_USAGES;
+        private MemoryUsage[] poolCollectionUsages = NO_USAGES;
+        private Status status = Status.OK;
+
+        public Builder id(String id) {
+            this.id = id;
+            return this;
+        }
+
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+        public Builder cpuTime(long cpuTime) {
+            this.cpuTime = cpuTime;
+            unset &= ~(1 << 0);
+            return this;
+        }
+        public Builder gcTime(long gcTime) {
+            this.gcTime = gcTime;
+            unset &= ~(1 << 1);
+            return this;
+        }
+        public Builder heapMemory(MemoryUsage heapMemory) {
+            this.heapMemory = heapMemory;
+            return this;
+        }
+        public Builder nonHeapMemory(MemoryUsage nonHeapMemory) {
+            this.nonHeapMemory = nonHeapMemory;
+            return this;
+        }
+        public Builder openFileDescriptorCount(long openFileDescriptorCount) {
+            this.openFileDescriptorCount = openFileDescriptorCount;
+            unset &= ~(1 << 2);
+            return this;
+        }
+        public Builder maxFileDescriptorCount(long maxFileDescriptorCount) {
+            this.maxFileDescriptorCount = maxFileDescriptorCount;
+            unset &= ~(1 << 3);
+            return this;
+        }
+        public Builder threadCount(int threadCount) {
+            this.threadCount = threadCount;
+            unset &= ~(1 << 4);
+            return this;
+        }
+        public Builder nioBufferPoolDirectMemoryUsed(long nioBufferPoolDirectMemoryUsed) {
+            this.nioBufferPoolDirectMemoryUsed = nioBufferPoolDirectMemoryUsed;
+            unset &= ~(1 << 5);
+            return this;
+        }
+        public Builder nioBufferPoolMappedMemoryUsed(long nioBufferPoolMappedMemoryUsed) {
+            this.nioBufferPoolMappedMemoryUsed = nioBufferPoolMappedMemoryUsed;
+            unset &= ~(1 << 6);
+            return this;
+        }
+        public Builder loadedClassCount(int loadedClassCount) {
+            this.loadedClassCount = loadedClassCount;
+            unset &= ~(1 << 7);
+            return this;
+        }
+        public Builder processCpuLoad(double processCpuLoad) {
+            this.processCpuLoad = processCpuLoad;
+            unset &= ~(1 << 8);
+            return this;
+        }
+        public Builder uptime(long uptime) {
+            this.uptime = uptime;
+            unset &= ~(1 << 9);
+            return this;
+        }
+        public Builder rss(long rss) {
+            this.rss = rss;
+            return this;
+        }
+        public Builder ioReadBytes(long ioReadBytes) {
+            this.ioReadBytes = ioReadBytes;
+            return this;
+        }
+        public Builder ioWriteBytes(long ioWriteBytes) {
+            this.ioWriteBytes = ioWriteBytes;
+            return this;
+        }
+        public Builder collectors(String[] collectorNames, long[] collectionCounts,
+                                  long[] collectionTimes) {
+            this.collectorNames = collectorNames;
+            this.collectionCounts = collectionCounts;
+            this.collectionTimes = collectionTimes;
+            return this;
+        }
+        public Builder pools(String[] poolNames, MemoryUsage[] poolUsages) {
+            this.poolNames = poolNames;
+            this.poolUsages = poolUsages;
+            return this;
+        }
+        /**
+         * The usage of each pool after its last collection, in the order
+         * of pools.
+         */
+        public Builder poolCollectionUsages(MemoryUsage[] poolCollectionUsages) {
+            this.poolCollectionUsages = poolCollectionUsages;
+            return this;
+        }
+        public Builder status(Status status) {
+            this.status = status;
+            return this;
+        }
+        public MBeanData finish() {
+            if (unset != 0) {
+                throw new IllegalStateException(
+                    REQUIRED[Integer.numberOfTrailingZeros(unset)] + " is not set");
+            }
+            return new MBeanData(this);
+        }
+    }
+}
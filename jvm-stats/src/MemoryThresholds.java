@@ -0,0 +1,217 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+/**
+ * Sets the UsageThreshold and CollectionUsageThreshold of the heap pools
+ * of the jvms to a fraction of their max, and listens for the threshold
+ * notifications the jvms send when a pool crosses them, so memory pressure
+ * is pushed by the jvm rather than found by polling. The original
+ * thresholds of each jvm are kept and set back by restore.
+ */
+class MemoryThresholds {
+    private static final ObjectName MEMORY = objectName(ManagementFactory.MEMORY_MXBEAN_NAME);
+    // sent to the jvm, so it has to be serializable there
+    private static final NotificationFilterSupport THRESHOLD_NOTIFICATIONS =
+        new NotificationFilterSupport();
+    static {
+        THRESHOLD_NOTIFICATIONS.enableType(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED);
+        THRESHOLD_NOTIFICATIONS.enableType(
+            MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED);
+    }
+    private static final String[] POOL_ATTRIBUTES = {
+        "UsageThresholdSupported", "CollectionUsageThresholdSupported", "UsageThreshold",
+        "CollectionUsageThreshold", "Usage"
+    };
+    // how long a jvm counts as alerting after a notification
+    private static final long ALERT_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final double fraction;
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    public MemoryThresholds(double fraction) {
+        this.fraction = fraction;
+    }
+
+    /**
+     * Sets the thresholds of the pools of the jvm on a new connection and
+     * listens for their notifications. The original thresholds are kept
+     * from the first connection to the jvm, as later connections find the
+     * ones set here.
+     */
+    public void register(String id, MBeanServerConnection conn, List<ObjectName> heapPools)
+        throws IOException {
+        Target target = targets.get(id);
+        if (target == null) {
+            target = new Target();
+            targets.put(id, target);
+            for (ObjectName pool : heapPools) {
+                target.pools.add(readPool(conn, pool));
+            }
+        }
+        target.conn = conn;
+        for (Pool pool : target.pools) {
+            long threshold = pool.max > 0 ? (long) (pool.max * fraction) : -1L;
+            if (threshold < 0) {
+                continue;
+            }
+            if (pool.originalUsageThreshold >= 0) {
+                setThreshold(conn, pool.name, "UsageThreshold", threshold);
+            }
+            if (pool.originalCollectionUsageThreshold >= 0) {
+                setThreshold(conn, pool.name, "CollectionUsageThreshold", threshold);
+            }
+        }
+        try {
+            conn.addNotificationListener(MEMORY, target, THRESHOLD_NOTIFICATIONS, null);
+        } catch (InstanceNotFoundException e) {
+            // no memory mbean, nothing to listen to
+        }
+    }
+
+    /**
+     * Returns whether a threshold notification of the jvm arrived since the
+     * last call, i.e. memory should be read again.
+     */
+    public boolean takeExceeded(String id) {
+        Target target = targets.get(id);
+        return target != null && target.exceeded.getAndSet(false);
+    }
+
+    /**
+     * Whether a threshold notification of the jvm arrived within the last
+     * minute.
+     */
+    public boolean isAlerting(String id) {
+        Target target = targets.get(id);
+        return target != null && target.lastNotificationNanos != 0
+            && System.nanoTime() - target.lastNotificationNanos < ALERT_NANOS;
+    }
+
+    /**
+     * Sets the original thresholds of all jvms back and stops listening.
+     * Jvms that are gone are skipped.
+     */
+    public void restoreAll() {
+        for (String id : new ArrayList<>(targets.keySet())) {
+            restore(id);
+        }
+    }
+
+    public void restore(String id) {
+        Target target = targets.remove(id);
+        if (target == null || target.conn == null) {
+            return;
+        }
+        try {
+            target.conn.removeNotificationListener(MEMORY, target, THRESHOLD_NOTIFICATIONS, null);
+        } catch (IOException | JMException e) {
+            // the jvm or the listener is gone
+        }
+        for (Pool pool : target.pools) {
+            try {
+                if (pool.originalUsageThreshold >= 0) {
+                    setThreshold(target.conn, pool.name, "UsageThreshold",
+                                 pool.originalUsageThreshold);
+                }
+                if (pool.originalCollectionUsageThreshold >= 0) {
+                    setThreshold(target.conn, pool.name, "CollectionUsageThreshold",
+                                 pool.originalCollectionUsageThreshold);
+                }
+            } catch (IOException e) {
+                // the jvm is gone
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets the jvms not in liveIds, which have exited and cannot be
+     * restored.
+     */
+    public void retain(Set<String> liveIds) {
+        targets.keySet().retainAll(liveIds);
+    }
+
+    private static Pool readPool(MBeanServerConnection conn, ObjectName name) throws IOException {
+        Pool pool = new Pool(name);
+        boolean usageSupported = false;
+        boolean collectionUsageSupported = false;
+        long usageThreshold = -1L;
+        long collectionUsageThreshold = -1L;
+        try {
+            for (Attribute attr : conn.getAttributes(name, POOL_ATTRIBUTES).asList()) {
+                Object value = attr.getValue();
+                switch (attr.getName()) {
+                case "UsageThresholdSupported":
+                    usageSupported = Boolean.TRUE.equals(value);
+                    break;
+                case "CollectionUsageThresholdSupported":
+                    collectionUsageSupported = Boolean.TRUE.equals(value);
+                    break;
+                case "UsageThreshold":
+                    usageThreshold = ((Number) value).longValue();
+                    break;
+                case "CollectionUsageThreshold":
+                    collectionUsageThreshold = ((Number) value).longValue();
+                    break;
+                default:
+                    MemoryUsage usage = MemoryUsage.from((CompositeData) value);
+                    pool.max = usage == null ? -1L : usage.getMax();
+                }
+            }
+        } catch (JMException e) {
+            // the pool is gone, nothing is set
+        }
+        pool.originalUsageThreshold = usageSupported ? usageThreshold : -1L;
+        pool.originalCollectionUsageThreshold =
+            collectionUsageSupported ? collectionUsageThreshold : -1L;
+        return pool;
+    }
+
+    private static void setThreshold(MBeanServerConnection conn, ObjectName pool,
+                                     String attribute, long threshold) throws IOException {
+        try {
+            conn.setAttribute(pool, new Attribute(attribute, threshold));
+        } catch (JMException e) {
+            // the pool is gone or refuses the threshold
+        }
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static class Pool {
+        private final ObjectName name;
+        private long max = -1L;
+        // -1 if the threshold is not supported
+        private long originalUsageThreshold = -1L;
+        private long originalCollectionUsageThreshold = -1L;
+
+        private Pool(ObjectName name) {
+            this.name = name;
+        }
+    }
+
+    private static class Target implements NotificationListener {
+        private final List<Pool> pools = new ArrayList<>();
+        private final AtomicBoolean exceeded = new AtomicBoolean();
+        private volatile MBeanServerConnection conn;
+        private volatile long lastNotificationNanos = 0;
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            lastNotificationNanos = System.nanoTime();
+            exceeded.set(true);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Serves the newest sample as OpenMetrics text on
+ * http://localhost:PORT/metrics, with the pid and display name of each jvm
+ * as labels. The sampler thread renders each sample once into a reused
+ * TextBuffer and swaps in a copy of its bytes, a scrape only writes them.
+ * Values that are not integral are written with DECIMALS decimals.
+ */
+class MetricsServer implements Closeable {
+    private static final String CONTENT_TYPE =
+        "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.99 };
+    private static final String[] QUANTILE_LABELS = { "0.5", "0.99" };
+    // micro seconds for the values in seconds
+    private static final int DECIMALS = 6;
+
+    private final HttpServer server;
+    // only touched by the thread calling publish
+    private final TextBuffer text = new TextBuffer(8192);
+    private final Map<String, Labels> labels = new HashMap<>();
+    private volatile byte[] metrics = "# EOF\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Listens on port of the loopback interface, 0 picks a free port.
+     */
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Renders beans, comparing to previous for the gc fraction, and the
+     * collection phases of stats, and makes them what the next scrape
+     * returns.
+     */
+    public void publish(List<MBeanData> beans, Map<String, MBeanData> previous,
+                        TargetStats stats) {
+        text.clear();
+        Set<String> ids = new HashSet<>();
+        for (MBeanData bean : beans) {
+            ids.add(bean.id);
+        }
+        labels.keySet().retainAll(ids);
+
+        gauge("jvmstats_up", "1 if the jvm was read within the timeout", beans,
+              bean -> bean.hasData() ? 1 : 0);
+        gauge("jvmstats_gc_cpu_ratio", "Fraction of the cpu time used garbage collecting", beans,
+              bean -> bean.getGcFraction(previous.getOrDefault(bean.id, bean)));
+        counter("jvmstats_gc_seconds", "Time used garbage collecting", beans,
+                bean -> bean.gcTime / 1_000.0);
+        counter("jvmstats_cpu_seconds", "Cpu time used", beans, bean -> bean.cpuTime / 1e9);
+        gauge("jvmstats_cpu_load", "Cpu load, 1 means all cpus are busy", beans,
+              bean -> bean.processCpuLoad);
+        gauge("jvmstats_memory_used_bytes", "Heap and non-heap memory used", beans,
+              bean -> hasMemory(bean)
+              ? bean.heapMemory.getUsed() + bean.nonHeapMemory.getUsed() : -1);
+        gauge("jvmstats_memory_committed_bytes", "Memory allocated to the jvm by the os", beans,
+              bean -> hasMemory(bean)
+              ? bean.heapMemory.getCommitted() + bean.nonHeapMemory.getCommitted() : -1);
+        gauge("jvmstats_heap_max_bytes", "Max allowed heap memory", beans,
+              bean -> hasMemory(bean) ? bean.heapMemory.getMax() : -1);
+        gauge("jvmstats_rss_bytes", "Resident set size", beans, bean -> bean.rss);
+        gauge("jvmstats_open_fds", "Number of open file descriptors", beans,
+              bean -> bean.openFileDescriptorCount);
+        gauge("jvmstats_threads", "Number of live threads", beans, bean -> bean.threadCount);
+        gauge("jvmstats_buffer_pool_bytes", "Size of the direct and mapped buffer pools", beans,
+              bean -> bean.nioBufferPoolDirectMemoryUsed < 0
+              || bean.nioBufferPoolMappedMemoryUsed < 0
+              ? -1 : bean.nioBufferPoolDirectMemoryUsed + bean.nioBufferPoolMappedMemoryUsed);
+        gauge("jvmstats_classes_loaded", "Number of loaded classes", beans,
+              bean -> bean.loadedClassCount);
+        gauge("jvmstats_uptime_seconds", "Time the jvm has been running", beans,
+              bean -> bean.uptime < 0 ? -1 : bean.uptime / 1_000.0);
+        targetStats(stats);
+        text.append("# EOF\n");
+
+        metrics = text.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics;
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static boolean hasMemory(MBeanData bean) {
+        return bean.status == MBeanData.Status.OK;
+    }
+
+    private void gauge(String name, String help, List<MBeanData> beans,
+                       ToDoubleFunction<MBeanData> value) {
+        family(name, "gauge", help, "", beans, value);
+    }
+
+    private void counter(String name, String help, List<MBeanData> beans,
+                         ToDoubleFunction<MBeanData> value) {
+        family(name, "counter", help, "_total", beans, value);
+    }
+
+    /**
+     * Appends a metric family with a sample per jvm. Negative values are
+     * unknown and left out, as are jvms without data except for
+     * jvmstats_up.
+     */
+    private void family(String name, String type, String help, String suffix,
+                        List<MBeanData> beans, ToDoubleFunction<MBeanData> value) {
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        boolean up = "jvmstats_up".equals(name);
+        for (MBeanData bean : beans) {
+            if (!bean.hasData() && !up) {
+                continue;
+            }
+            double v = value.applyAsDouble(bean);
+            if (v < 0 || Double.isNaN(v)) {
+                continue;
+            }
+            text.append(name).append(suffix).append(getLabels(bean)).append(' ');
+            appendValue(v).append('\n');
+        }
+    }
+
+    /**
+     * Appends the latency of each collection phase of each jvm as a
+     * summary and its errors as a counter, labelled by pid and phase.
+     */
+    private void targetStats(TargetStats stats) {
+        List<String> ids = stats.getIds();
+        String summary = "jvmstats_target_phase_seconds";
+        text.append("# TYPE ").append(summary).append(" summary\n");
+        text.append("# HELP ").append(summary)
+            .append(" Latency of each phase of collecting from the jvm\n");
+        for (String id : ids) {
+            for (TargetStats.Phase phase : TargetStats.Phase.values()) {
+                LatencyHistogram latencies = stats.getLatencies(id, phase);
+                if (latencies == null || latencies.getCount() == 0) {
+                    continue;
+                }
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    text.append(summary);
+                    phaseLabels(id, phase).append(",quantile=\"").append(QUANTILE_LABELS[i])
+                        .append("\"} ");
+                    appendValue(latencies.getPercentile(QUANTILES[i]) / 1e6).append('\n');
+                }
+                text.append(summary).append("_sum");
+                phaseLabels(id, phase).append("} ");
+                appendValue(latencies.getSum() / 1e6).append('\n');
+                text.append(summary).append("_count");
+                phaseLabels(id, phase).append("} ").append(latencies.getCount()).append('\n');
+            }
+        }
+
+        String counter = "jvmstats_target_phase_errors";
+        text.append("# TYPE ").append(counter).append(" counter\n");
+        text.append("# HELP ").append(counter)
+            .append(" Failures of each phase of collecting from the jvm, timeouts for collect\n");
+        for (String id : ids) {
+            for (TargetStats.Phase phase : TargetStats.Phase.values()) {
+                LatencyHistogram latencies = stats.getLatencies(id, phase);
+                long errors = stats.getErrors(id, phase);
+                if (latencies == null || latencies.getCount() == 0 && errors == 0) {
+                    continue;
+                }
+                text.append(counter).append("_total");
+                phaseLabels(id, phase).append("} ").append(errors).append('\n');
+            }
+        }
+    }
+
+    private TextBuffer appendValue(double value) {
+        return value == (long) value ? text.append((long) value)
+            : text.appendFixed(value, DECIMALS);
+    }
+
+    /**
+     * Appends the labels of a phase without the closing brace, so more can
+     * follow.
+     */
+    private TextBuffer phaseLabels(String id, TargetStats.Phase phase) {
+        return text.append("{pid=\"").append(escape(id)).append("\",phase=\"")
+            .append(phase.label).append('"');
+    }
+
+    /**
+     * The labels of the jvm, rebuilt when its display name changes, e.g.
+     * when a jvm found before its name could be read is named.
+     */
+    private String getLabels(MBeanData bean) {
+        Labels cached = labels.get(bean.id);
+        if (cached == null || !cached.name.equals(bean.name)) {
+            cached = new Labels(bean.name, "{pid=\"" + escape(bean.id) + "\",name=\""
+                                + escape(bean.name) + "\"}");
+            labels.put(bean.id, cached);
+        }
+        return cached.text;
+    }
+
+    /**
+     * Escapes a label value, returns value itself if there is nothing to
+     * escape.
+     */
+    private static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        StringBuilder builder = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                builder.append('\\').append(c);
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static class Labels {
+        private final String name;
+        private final String text;
+
+        private Labels(String name, String text) {
+            this.name = name;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads what linux publishes about any process in /proc/PID: cpu time,
+ * rss, thread count, open file descriptors and io bytes. Used for jvms that
+ * cannot be attached to (another user, -XX:+DisableAttachMechanism, still
+ * starting), the data is marked as degraded as there is no gc or heap data.
+ *
+ * The files are read into one reused buffer and parsed in place.
+ */
+class ProcCollector {
+    // /proc/PID/stat reports cpu time in USER_HZ, which is 100 on linux
+    private static final long NANOS_PER_CLOCK_TICK = 10_000_000L;
+    private static final long MILLIS_PER_CLOCK_TICK = 10L;
+    // fields of /proc/PID/stat counted from the field after the command,
+    // which is field 3 in proc(5)
+    private static final int STAT_UTIME = 11;
+    private static final int STAT_STIME = 12;
+    private static final int STAT_NUM_THREADS = 17;
+    private static final int STAT_STARTTIME = 19;
+    private static final byte[] VM_RSS = "VmRSS:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] READ_BYTES = "read_bytes:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WRITE_BYTES = "write_bytes:".getBytes(StandardCharsets.US_ASCII);
+    private static final Path UPTIME = Paths.get("/proc/uptime");
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+    private final long[] statFields = new long[STAT_STARTTIME + 1];
+    private final Map<String, ProcState> states = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the degraded data of the process, or null if it does not
+     * exist.
+     */
+    public synchronized MBeanData collect(String id, String name) {
+        Path dir = Paths.get("/proc", id);
+        if (!readStat(dir)) {
+            return null;
+        }
+        long cpuTime = (statFields[STAT_UTIME] + statFields[STAT_STIME]) * NANOS_PER_CLOCK_TICK;
+        long uptime = getUptime(statFields[STAT_STARTTIME]);
+        ProcState state = getState(id);
+        if (name == null || name.isEmpty()) {
+            name = state.getCommandLine(dir);
+        }
+
+        return new MBeanData.Builder().id(id)
+            .name(name)
+            .cpuTime(cpuTime)
+            .gcTime(0L)
+            .heapMemory(MBeanData.NONE_MEMORY_USAGE)
+            .nonHeapMemory(MBeanData.NONE_MEMORY_USAGE)
+            .openFileDescriptorCount(countFileDescriptors(dir))
+            .maxFileDescriptorCount(-1L)
+            .threadCount((int) statFields[STAT_NUM_THREADS])
+            .nioBufferPoolDirectMemoryUsed(-1L)
+            .nioBufferPoolMappedMemoryUsed(-1L)
+            .loadedClassCount(-1)
+            .processCpuLoad(state.getCpuLoad(cpuTime, uptime))
+            .uptime(uptime)
+            .rss(readRss(dir))
+            .ioReadBytes(findLong(read(dir.resolve("io")), READ_BYTES))
+            .ioWriteBytes(findLong(buffer.position(), WRITE_BYTES))
+            .status(MBeanData.Status.DEGRADED)
+            .finish();
+    }
+
+    /**
+     * Returns the cpu time of the process in nano seconds, or -1.
+     */
+    public synchronized long readCpuTime(String id) {
+        if (!readStat(Paths.get("/proc", id))) {
+            return -1L;
+        }
+        return (statFields[STAT_UTIME] + statFields[STAT_STIME]) * NANOS_PER_CLOCK_TICK;
+    }
+
+    /**
+     * Cpu load of the process since the previous call, or over its lifetime
+     * for the first call. Like ProcessCpuLoad, 1.0 means all cpus are busy.
+     */
+    public double getCpuLoad(String id, long cpuTime, long uptime) {
+        return getState(id).getCpuLoad(cpuTime, uptime);
+    }
+
+    /**
+     * Forgets the state of all processes not in liveIds.
+     */
+    public void retain(Set<String> liveIds) {
+        states.keySet().retainAll(liveIds);
+    }
+
+    private ProcState getState(String id) {
+        ProcState state = states.get(id);
+        if (state == null) {
+            state = new ProcState();
+            states.put(id, state);
+        }
+        return state;
+    }
+
+    /**
+     * Parses /proc/PID/stat into statFields. The command can contain spaces
+     * and parentheses, so fields are counted from its last ')'.
+     */
+    private boolean readStat(Path dir) {
+        int length = read(dir.resolve("stat"));
+        if (length < 0) {
+            return false;
+        }
+        byte[] bytes = buffer.array();
+        int pos = length - 1;
+        while (pos >= 0 && bytes[pos] != ')') {
+            pos--;
+        }
+        if (pos < 0) {
+            return false;
+        }
+        pos += 2;
+        for (int field = 0; field < statFields.length && pos < length; field++) {
+            long value = 0;
+            while (pos < length && bytes[pos] != ' ') {
+                byte b = bytes[pos++];
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            statFields[field] = value;
+            pos++;
+        }
+        return true;
+    }
+
+    /**
+     * Milli seconds since the process started, from its start time in clock
+     * ticks after boot.
+     */
+    private long getUptime(long startTicks) {
+        int length = read(UPTIME);
+        if (length < 0) {
+            return -1L;
+        }
+        byte[] bytes = buffer.array();
+        long millis = 0;
+        int decimals = -1;
+        for (int pos = 0; pos < length && decimals < 3; pos++) {
+            byte b = bytes[pos];
+            if (b == '.') {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9') {
+                millis = millis * 10 + (b - '0');
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else {
+                break;
+            }
+        }
+        for (decimals = Math.max(0, decimals); decimals < 3; decimals++) {
+            millis *= 10;
+        }
+        return millis - startTicks * MILLIS_PER_CLOCK_TICK;
+    }
+
+    private long readRss(Path dir) {
+        long kiloBytes = findLong(read(dir.resolve("status")), VM_RSS);
+        return kiloBytes < 0 ? -1L : kiloBytes * 1024;
+    }
+
+    /**
+     * Returns the number after the line starting with key in the first
+     * length bytes of buffer, or -1.
+     */
+    private long findLong(int length, byte[] key) {
+        byte[] bytes = buffer.array();
+        for (int pos = 0; pos + key.length <= length; pos++) {
+            if ((pos == 0 || bytes[pos - 1] == '\n') && startsWith(bytes, pos, key)) {
+                pos += key.length;
+                while (pos < length && (bytes[pos] == ' ' || bytes[pos] == '\t')) {
+                    pos++;
+                }
+                long value = 0;
+                while (pos < length && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                    value = value * 10 + (bytes[pos++] - '0');
+                }
+                return value;
+            }
+        }
+        return -1L;
+    }
+
+    private static boolean startsWith(byte[] bytes, int pos, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long countFileDescriptors(Path dir) {
+        long count = 0;
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(dir.resolve("fd"))) {
+            for (Iterator<Path> it = fds.iterator(); it.hasNext(); it.next()) {
+                count++;
+            }
+        } catch (IOException e) {
+            // another user's process
+            return -1L;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the file into buffer and returns its length, or -1 if it cannot
+     * be read. Files larger than the buffer are truncated, which is fine for
+     * the /proc files that are read.
+     */
+    private int read(Path file) {
+        buffer.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // read until full or end of file
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return buffer.position();
+    }
+
+    /**
+     * What is remembered about a process between samples.
+     */
+    private static class ProcState {
+        private String commandLine;
+        private long lastCpuTime = -1;
+        private long lastNanoTime;
+
+        private synchronized double getCpuLoad(long cpuTime, long uptime) {
+            long now = System.nanoTime();
+            double cpus = Runtime.getRuntime().availableProcessors();
+            double load;
+            if (cpuTime < 0) {
+                load = -1.0;
+            } else if (lastCpuTime < 0 || now == lastNanoTime) {
+                load = uptime <= 0 ? 0.0 : cpuTime / (uptime * 1_000_000.0) / cpus;
+            } else {
+                load = (cpuTime - lastCpuTime) / (double) (now - lastNanoTime) / cpus;
+            }
+            lastCpuTime = cpuTime;
+            lastNanoTime = now;
+            return load;
+        }
+
+        private String getCommandLine(Path dir) {
+            if (commandLine == null) {
+                try {
+                    byte[] bytes = Files.readAllBytes(dir.resolve("cmdline"));
+                    for (int i = 0; i < bytes.length; i++) {
+                        if (bytes[i] == 0) {
+                            bytes[i] = ' ';
+                        }
+                    }
+                    commandLine = new String(bytes, StandardCharsets.UTF_8).trim();
+                } catch (IOException e) {
+                    commandLine = "";
+                }
+            }
+            return commandLine;
+        }
+    }
+}
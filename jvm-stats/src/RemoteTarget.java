@@ -0,0 +1,63 @@
+import java.net.*;
+import java.time.*;
+import javax.management.remote.*;
+
+/**
+ * A jvm reached over a JMX remote port rather than attached to, given as
+ * HOST:PORT or a full service:jmx URL, either optionally followed by
+ * @SECONDS, its own collection timeout. The target as given, without the
+ * timeout, is its id.
+ */
+class RemoteTarget {
+    public final String id;
+    public final JMXServiceURL url;
+    // null to use the timeout of the local jvms
+    public final Duration timeout;
+
+    private RemoteTarget(String id, JMXServiceURL url, Duration timeout) {
+        this.id = id;
+        this.url = url;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Parses a target, throws IllegalArgumentException if it is not valid.
+     */
+    public static RemoteTarget parse(String target) {
+        String id = target;
+        Duration timeout = null;
+        int at = target.lastIndexOf('@');
+        if (at >= 0) {
+            try {
+                double seconds = Double.parseDouble(target.substring(at + 1));
+                if (seconds > 0) {
+                    id = target.substring(0, at);
+                    timeout = Duration.ofMillis(Math.round(seconds * 1000));
+                }
+            } catch (NumberFormatException e) {
+                // part of the url
+            }
+        }
+        try {
+            if (id.startsWith("service:jmx:")) {
+                return new RemoteTarget(id, new JMXServiceURL(id), timeout);
+            }
+            int colon = id.lastIndexOf(':');
+            if (colon > 0) {
+                int port = Integer.parseInt(id.substring(colon + 1));
+                if (port > 0 && port <= 0xffff) {
+                    return new RemoteTarget(id, new JMXServiceURL(
+                            "service:jmx:rmi:///jndi/rmi://" + id + "/jmxrmi"), timeout);
+                }
+            }
+        } catch (MalformedURLException | NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid remote target: " + target);
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * The recent cpu and gc times of one jvm, in a ring buffer of primitive
+ * longs. Rates over a window are computed from the stored samples, so
+ * asking for them neither blocks nor collects.
+ */
+class SampleHistory {
+    private final long[] nanoTimes;
+    private final long[] cpuTimes;
+    private final long[] gcTimes;
+    // index of the newest sample
+    private int head = -1;
+    private int size = 0;
+
+    public SampleHistory(int capacity) {
+        this.nanoTimes = new long[capacity];
+        this.cpuTimes = new long[capacity];
+        this.gcTimes = new long[capacity];
+    }
+
+    /**
+     * @param cpuTime in nano seconds
+     * @param gcTime in milli seconds
+     */
+    public synchronized void add(long nanoTime, long cpuTime, long gcTime) {
+        head = (head + 1) % nanoTimes.length;
+        nanoTimes[head] = nanoTime;
+        cpuTimes[head] = cpuTime;
+        gcTimes[head] = gcTime;
+        size = Math.min(size + 1, nanoTimes.length);
+    }
+
+    /**
+     * The fraction of cpu time spent on gc between the newest sample and
+     * the newest sample that is at least windowNanos older. If there is no
+     * such sample, the oldest sample is used. Returns 0 with less than two
+     * samples.
+     */
+    public synchronized double getGcFraction(long windowNanos) {
+        if (size < 2) {
+            return 0.0;
+        }
+        int from = find(nanoTimes[head] - windowNanos);
+        long cpuTimeDiff = cpuTimes[head] - cpuTimes[from];
+        long gcTimeDiff = (gcTimes[head] - gcTimes[from]) * 1_000_000;
+        return cpuTimeDiff <= 0 ? 0.0 : (double) gcTimeDiff / cpuTimeDiff;
+    }
+
+    /**
+     * Index of the newest sample taken at or before nanoTime, or of the
+     * oldest sample if all are newer.
+     */
+    private int find(long nanoTime) {
+        int index = head;
+        for (int i = 1; i < size; i++) {
+            index = (index - 1 + nanoTimes.length) % nanoTimes.length;
+            if (nanoTimes[index] - nanoTime <= 0) {
+                return index;
+            }
+        }
+        return index;
+    }
+}
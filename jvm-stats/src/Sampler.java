@@ -0,0 +1,137 @@
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Samples all jvms at a fixed rate on a background thread. The cpu and gc
+ * times of each jvm are kept in a SampleHistory covering the longest
+ * window, and the newest sample is available as a Snapshot, so nothing
+ * needs to wait for a collection.
+ */
+class Sampler {
+    public static final Duration LONGEST_WINDOW = Duration.ofSeconds(60);
+
+    private final Supplier<List<MBeanData>> collect;
+    private final Duration interval;
+    private final int historyCapacity;
+    private final Map<String, SampleHistory> histories = new ConcurrentHashMap<>();
+    private final List<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "jvm-stats-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyList(),
+                                                      Collections.emptyMap(), 0L);
+    private volatile boolean verbose = false;
+
+    public Sampler(Supplier<List<MBeanData>> collect, Duration interval) {
+        this.collect = collect;
+        this.interval = interval;
+        // +1: a window of n intervals needs n+1 samples
+        this.historyCapacity = (int) Math.max(2, LONGEST_WINDOW.toNanos() / interval.toNanos() + 1);
+    }
+
+    /**
+     * Prints a line to stderr for each sample that fails.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Calls listener on the sampler thread after each sample.
+     */
+    public void addListener(Consumer<Snapshot> listener) {
+        listeners.add(listener);
+    }
+
+    public void start() {
+        executor.scheduleAtFixedRate(this::sample, 0, interval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the history of the jvm, or null if it has not been sampled.
+     */
+    public SampleHistory getHistory(String id) {
+        return histories.get(id);
+    }
+
+    private void sample() {
+        try {
+            List<MBeanData> beans = collect.get();
+            long now = System.nanoTime();
+            Map<String, MBeanData> last = new HashMap<>();
+            for (MBeanData bean : snapshot.beans) {
+                last.put(bean.id, bean);
+            }
+            Set<String> ids = new HashSet<>();
+            for (MBeanData bean : beans) {
+                ids.add(bean.id);
+                // the same bean again when a Cadence skipped the jvm
+                if (!bean.hasData() || bean == last.get(bean.id)) {
+                    continue;
+                }
+                SampleHistory history = histories.get(bean.id);
+                if (history == null) {
+                    history = new SampleHistory(historyCapacity);
+                    histories.put(bean.id, history);
+                }
+                history.add(now, bean.cpuTime, bean.gcTime);
+            }
+            histories.keySet().retainAll(ids);
+
+            Map<String, MBeanData> previous = new HashMap<>();
+            for (MBeanData bean : beans) {
+                MBeanData lastBean = last.get(bean.id);
+                if (lastBean == null) {
+                    continue;
+                }
+                if (lastBean.hasData() && lastBean != bean) {
+                    previous.put(bean.id, lastBean);
+                } else if (snapshot.previous.containsKey(bean.id)) {
+                    // compare to the last sample that has data, or keep the
+                    // last interval of a jvm that was not sampled again
+                    previous.put(bean.id, snapshot.previous.get(bean.id));
+                }
+            }
+            snapshot = new Snapshot(Collections.unmodifiableList(new ArrayList<>(beans)),
+                                    Collections.unmodifiableMap(previous), now);
+            for (Consumer<Snapshot> listener : listeners) {
+                listener.accept(snapshot);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the schedule
+            if (verbose) {
+                System.err.println("Sampling failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * The newest sample of all jvms, and the sample before it.
+     */
+    static class Snapshot {
+        public final List<MBeanData> beans;
+        // the previous sample, keyed by vm id
+        public final Map<String, MBeanData> previous;
+        public final long nanoTime;
+
+        private Snapshot(List<MBeanData> beans, Map<String, MBeanData> previous,
+                         long nanoTime) {
+            this.beans = beans;
+            this.previous = previous;
+            this.nanoTime = nanoTime;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Serves the newest sample over a unix domain socket, so any number of
+ * clients share one sampler and a client never causes a collection. A
+ * client writes one command byte and reads the reply until the socket is
+ * closed, e.g. "printf c | nc -U PATH". The replies are rendered once per
+ * sample by the sampler thread and written as is by a single selector
+ * thread.
+ */
+class SnapshotServer implements Closeable {
+    private static final byte[] UNKNOWN_COMMAND =
+        "unknown command\n".getBytes(StandardCharsets.US_ASCII);
+    // the file type bits of unix:mode, and those of a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private final Path path;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ByteBuffer command = ByteBuffer.allocate(1);
+    // rendered replies keyed by command, replaced as a whole per sample
+    private volatile Map<Character, byte[]> replies = Collections.emptyMap();
+
+    /**
+     * Listens on path, replacing a socket file left by a server that did
+     * not exit cleanly. Throws IOException if path is another kind of file
+     * or a server is listening on it.
+     */
+    public SnapshotServer(Path path) throws IOException {
+        this.path = path;
+        removeStale(path);
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(path));
+            server.configureBlocking(false);
+            this.selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the replies to all commands. Commands not in replies are
+     * answered with an error until the next publish.
+     */
+    public void publish(Map<Character, byte[]> replies) {
+        this.replies = replies;
+    }
+
+    /**
+     * Answers clients until the server is closed.
+     */
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException | CancelledKeyException e) {
+                        // the client went away
+                        closeQuietly(key.channel());
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Closes the socket and removes its file. Safe to call from a shutdown
+     * hook while run is selecting.
+     */
+    @Override
+    public void close() {
+        closeQuietly(selector);
+        closeQuietly(server);
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Sends command to the server at path and copies the reply to out.
+     */
+    public static void query(Path path, char command, OutputStream out) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+            channel.write(ByteBuffer.wrap(new byte[] { (byte) command }));
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            while (channel.read(buffer) >= 0) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Removes path if it is a socket no server listens on.
+     */
+    private static void removeStale(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        if ((mode & S_IFMT) != S_IFSOCK) {
+            throw new FileAlreadyExistsException(path.toString(), null, "not a socket");
+        }
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+        } catch (ConnectException e) {
+            // nobody listens on it
+            Files.delete(path);
+            return;
+        }
+        throw new IOException("already serving on " + path);
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (key.isAcceptable()) {
+            SocketChannel client = server.accept();
+            if (client != null) {
+                client.configureBlocking(false);
+                client.register(selector, SelectionKey.OP_READ);
+            }
+        } else if (key.isReadable()) {
+            SocketChannel client = (SocketChannel) key.channel();
+            command.clear();
+            int read = client.read(command);
+            if (read < 0) {
+                client.close();
+            } else if (read > 0) {
+                byte[] reply = replies.get((char) command.get(0));
+                ByteBuffer buffer = ByteBuffer.wrap(reply == null ? UNKNOWN_COMMAND : reply);
+                // most replies fit in the socket buffer and are written here
+                client.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.attach(buffer);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    client.close();
+                }
+            }
+        } else if (key.isWritable()) {
+            SocketChannel client = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            client.write(buffer);
+            if (!buffer.hasRemaining()) {
+                client.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.*;
+
+/**
+ * Lays out rows of right aligned columns as printf would with "%Ns   " per
+ * column and an unpadded last column, N being the widest cell of the
+ * column. The first row is the header and sets the number of columns, the
+ * end of each row is marked with endRow. Cells are appended in place to one
+ * reused TextBuffer, so a table is rendered without allocating once its
+ * buffers have grown to fit.
+ */
+class Table {
+    private static final int SEPARATOR = 3;
+
+    private final TextBuffer cells = new TextBuffer(8192);
+    private int[] cellEnds = new int[256];
+    private int cellCount = 0;
+    private int[] widths = new int[32];
+    // 0 until the header row has ended
+    private int columns = 0;
+
+    public void reset() {
+        cells.clear();
+        cellCount = 0;
+        columns = 0;
+    }
+
+    public void endRow() {
+        if (columns == 0) {
+            columns = cellCount;
+        } else if (cellCount % columns != 0) {
+            throw new IllegalStateException("Row " + cellCount / columns + " has "
+                                            + cellCount % columns + " cells, expected "
+                                            + columns);
+        }
+    }
+
+    /**
+     * The buffer to append the next cell to, followed by endCell.
+     */
+    public TextBuffer cell() {
+        return cells;
+    }
+
+    public void endCell() {
+        if (cellCount == cellEnds.length) {
+            cellEnds = Arrays.copyOf(cellEnds, cellCount * 2);
+        }
+        cellEnds[cellCount++] = cells.length();
+    }
+
+    public Table add(String value) {
+        cells.append(value);
+        endCell();
+        return this;
+    }
+
+    public Table add(char value) {
+        cells.append(value);
+        endCell();
+        return this;
+    }
+
+    public Table add(long value) {
+        cells.append(value);
+        endCell();
+        return this;
+    }
+
+    /**
+     * Adds value with 2 decimals.
+     */
+    public Table addFixed(double value) {
+        cells.appendFixed(value, 2);
+        endCell();
+        return this;
+    }
+
+    /**
+     * Adds bytes like JvmGcStats.humanBytes, or - if negative.
+     */
+    public Table addBytes(long bytes) {
+        if (bytes < 0) {
+            cells.append('-');
+        } else {
+            cells.appendHumanBytes(bytes);
+        }
+        endCell();
+        return this;
+    }
+
+    public Table addDuration(long seconds) {
+        cells.appendDuration(seconds);
+        endCell();
+        return this;
+    }
+
+    /**
+     * Appends the table to out.
+     */
+    public void render(TextBuffer out) {
+        if (columns == 0) {
+            return;
+        }
+        if (widths.length < columns) {
+            widths = new int[columns];
+        }
+        int rows = cellCount / columns;
+        // - 1: last column is not padded
+        for (int column = 0; column < columns - 1; column++) {
+            int width = 0;
+            for (int row = 0; row < rows; row++) {
+                int cell = row * columns + column;
+                width = Math.max(width, cells.width(start(cell), cellEnds[cell]));
+            }
+            widths[column] = width;
+        }
+
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int cell = row * columns + column;
+                if (column < columns - 1) {
+                    int padding = widths[column] - cells.width(start(cell), cellEnds[cell]);
+                    for (int i = 0; i < padding; i++) {
+                        out.append(' ');
+                    }
+                    out.append(cells, start(cell), cellEnds[cell]);
+                    for (int i = 0; i < SEPARATOR; i++) {
+                        out.append(' ');
+                    }
+                } else {
+                    out.append(cells, start(cell), cellEnds[cell]).append('\n');
+                }
+            }
+        }
+    }
+
+    private int start(int cell) {
+        return cell == 0 ? 0 : cellEnds[cell - 1];
+    }
+}
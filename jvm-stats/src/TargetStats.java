@@ -0,0 +1,98 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Latencies and error counts of each phase of collecting from each jvm,
+ * since start, as the collectors swallow their errors. Latencies are in
+ * micro seconds.
+ */
+class TargetStats {
+    enum Phase {
+        // VirtualMachine.attach
+        ATTACH("attach"),
+        // reading the connector address, starting the management agent
+        AGENT("agent"),
+        // the JMX connection handshake
+        CONNECT("connect"),
+        // reading the MBeans of one sample
+        QUERY("query"),
+        // reading /proc
+        PROC("proc"),
+        // reading the hsperfdata file
+        PERF_DATA("perfdata"),
+        // all of the above for one sample, errors include timeouts
+        COLLECT("collect");
+
+        public final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    /**
+     * Records a phase of the jvm that started at startNanos, from
+     * System.nanoTime, and ends now.
+     */
+    public void record(String id, Phase phase, long startNanos, boolean succeeded) {
+        Target target = getTarget(id);
+        target.latencies[phase.ordinal()].record((System.nanoTime() - startNanos) / 1_000L);
+        if (!succeeded) {
+            target.errors.incrementAndGet(phase.ordinal());
+        }
+    }
+
+    /**
+     * Counts an error of a phase that has no latency, e.g. a timeout.
+     */
+    public void failed(String id, Phase phase) {
+        getTarget(id).errors.incrementAndGet(phase.ordinal());
+    }
+
+    /**
+     * The jvms with any phase recorded, ordered like the samples.
+     */
+    public List<String> getIds() {
+        List<String> ids = new ArrayList<>(targets.keySet());
+        ids.sort(Comparator.comparing(String::length).thenComparing(Comparator.naturalOrder()));
+        return ids;
+    }
+
+    /**
+     * The latencies of a phase of the jvm, or null if it is not tracked.
+     */
+    public LatencyHistogram getLatencies(String id, Phase phase) {
+        Target target = targets.get(id);
+        return target == null ? null : target.latencies[phase.ordinal()];
+    }
+
+    public long getErrors(String id, Phase phase) {
+        Target target = targets.get(id);
+        return target == null ? 0 : target.errors.get(phase.ordinal());
+    }
+
+    /**
+     * Forgets the jvms not in liveIds.
+     */
+    public void retain(Set<String> liveIds) {
+        targets.keySet().retainAll(liveIds);
+    }
+
+    private Target getTarget(String id) {
+        return targets.computeIfAbsent(id, key -> new Target());
+    }
+
+    private static class Target {
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Phase.values().length];
+        private final AtomicLongArray errors = new AtomicLongArray(Phase.values().length);
+
+        private Target() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * A growable byte buffer that is kept from one sample to the next, with
+ * appenders for what jvm-stats prints that format without creating
+ * strings, so printing a sample does not allocate once the buffer has
+ * grown to fit. Strings are appended as UTF-8.
+ */
+class TextBuffer {
+    private static final byte[] BYTE_UNITS = { 'K', 'M', 'G', 'T', 'P', 'E' };
+    private static final byte[] NAN = { 'N', 'a', 'N' };
+    private static final byte[] INFINITY = { 'I', 'n', 'f', 'i', 'n', 'i', 't', 'y' };
+    // longest decimal long, with a sign
+    private static final int MAX_LONG_DIGITS = 20;
+    // relative distance from a tie within which value * scale may round
+    // differently than the decimal of value, many ulps to be safe
+    private static final double TIE_TOLERANCE = 1e-12;
+
+    private byte[] bytes;
+    private ByteBuffer wrapped;
+    private int length = 0;
+
+    public TextBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+        this.wrapped = ByteBuffer.wrap(bytes);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte get(int index) {
+        return bytes[index];
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public TextBuffer append(char c) {
+        if (c < 0x80) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) c;
+        } else {
+            appendUtf8(c);
+        }
+        return this;
+    }
+
+    public TextBuffer append(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                ensureCapacity(1);
+                bytes[length++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                       && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+                bytes[length++] = (byte) (0x80 | (codePoint >> 12 & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint >> 6 & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                appendUtf8(c);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends bytes [from, to) of other.
+     */
+    public TextBuffer append(TextBuffer other, int from, int to) {
+        ensureCapacity(to - from);
+        System.arraycopy(other.bytes, from, bytes, length, to - from);
+        length += to - from;
+        return this;
+    }
+
+    public TextBuffer append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        ensureCapacity(MAX_LONG_DIGITS);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int end = length + digits(value);
+        for (int pos = end - 1; pos >= length; pos--) {
+            bytes[pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length = end;
+        return this;
+    }
+
+    /**
+     * Appends value like String.format("%.Nf", value) does, for N up to 9.
+     */
+    public TextBuffer appendFixed(double value, int decimals) {
+        if (Double.isNaN(value)) {
+            return append(NAN);
+        }
+        if (Double.doubleToRawLongBits(value) < 0) {
+            append('-');
+            value = -value;
+        }
+        if (Double.isInfinite(value)) {
+            return append(INFINITY);
+        }
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        if (value >= Long.MAX_VALUE / scale) {
+            // too large for a long, rare enough to format
+            return append(String.format("%." + decimals + "f", value));
+        }
+        double product = value * scale;
+        double floor = Math.floor(product);
+        // Formatter rounds the shortest decimal that is value half up, which
+        // value * scale, off by up to an ulp, can put on the wrong side of
+        // a tie, so near a tie leave it to Formatter
+        if (Math.abs(product - floor - 0.5) <= product * TIE_TOLERANCE) {
+            return append(String.format("%." + decimals + "f", value));
+        }
+        long scaled = Math.round(product);
+        append(scaled / scale);
+        if (decimals > 0) {
+            ensureCapacity(decimals + 1);
+            bytes[length++] = '.';
+            long fraction = scaled % scale;
+            for (int pos = length + decimals - 1; pos >= length; pos--) {
+                bytes[pos] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            length += decimals;
+        }
+        return this;
+    }
+
+    /**
+     * Appends bytes like JvmGcStats.humanBytes.
+     */
+    public TextBuffer appendHumanBytes(long bytes) {
+        int unit = 1024;
+        if (bytes < unit) {
+            return append(bytes);
+        }
+        int exp = (int) (Math.log(bytes) / Math.log(unit));
+        append(Math.round(bytes / Math.pow(unit, exp)));
+        ensureCapacity(1);
+        this.bytes[length++] = BYTE_UNITS[exp - 1];
+        return this;
+    }
+
+    /**
+     * Appends seconds like Duration.toString, e.g. PT1H2M3S.
+     */
+    public TextBuffer appendDuration(long seconds) {
+        if (seconds < 0) {
+            return append(Duration.ofSeconds(seconds).toString());
+        }
+        append('P').append('T');
+        if (seconds == 0) {
+            return append('0').append('S');
+        }
+        long hours = seconds / 3600;
+        long minutes = seconds % 3600 / 60;
+        long secs = seconds % 60;
+        if (hours != 0) {
+            append(hours).append('H');
+        }
+        if (minutes != 0) {
+            append(minutes).append('M');
+        }
+        if (secs != 0) {
+            append(secs).append('S');
+        }
+        return this;
+    }
+
+    /**
+     * Number of characters in bytes [from, to), i.e. not counting UTF-8
+     * continuation bytes.
+     */
+    public int width(int from, int to) {
+        int width = 0;
+        for (int i = from; i < to; i++) {
+            if ((bytes[i] & 0xc0) != 0x80) {
+                width++;
+            }
+        }
+        return width;
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        wrapped.clear().limit(length);
+        while (wrapped.hasRemaining()) {
+            channel.write(wrapped);
+        }
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private TextBuffer append(byte[] ascii) {
+        ensureCapacity(ascii.length);
+        System.arraycopy(ascii, 0, bytes, length, ascii.length);
+        length += ascii.length;
+        return this;
+    }
+
+    private void appendUtf8(char c) {
+        ensureCapacity(3);
+        if (Character.isSurrogate(c)) {
+            // unpaired
+            bytes[length++] = '?';
+        } else if (c < 0x800) {
+            bytes[length++] = (byte) (0xc0 | c >> 6);
+            bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        } else {
+            bytes[length++] = (byte) (0xe0 | c >> 12);
+            bytes[length++] = (byte) (0x80 | (c >> 6 & 0x3f));
+            bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            wrapped = ByteBuffer.wrap(bytes);
+        }
+    }
+}